@@ -0,0 +1,54 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb;
+
+import android.app.Application;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.AndroidViewModel;
+
+import com.jorgesys.gpb.billing.BillingManager;
+
+/**
+ * Keeps the BillingManager of GamePlayActivity across its recreations.
+ * <p>
+ * The activity is recreated on every rotation, the connection to Play, the purchases queried and
+ * the queries in flight are not: the manager only holds the application context, and is
+ * destroyed once the activity finishes for good.
+ */
+public class BillingViewModel extends AndroidViewModel {
+    private static final String TAG = "BillingViewModel";
+
+    private final BillingManager mBillingManager;
+
+    public BillingViewModel(@NonNull Application application) {
+        super(application);
+        // Connects once the first frames are drawn or as soon as something needs it
+        mBillingManager = new BillingManager(application);
+    }
+
+    public BillingManager getBillingManager() {
+        return mBillingManager;
+    }
+
+    @Override
+    protected void onCleared() {
+        Log.d(TAG, "onCleared()");
+        mBillingManager.destroy();
+    }
+}
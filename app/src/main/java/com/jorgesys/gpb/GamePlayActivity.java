@@ -19,7 +19,6 @@ package com.jorgesys.gpb;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
 import android.view.View;
@@ -28,24 +27,26 @@ import android.widget.ImageView;
 import androidx.annotation.Nullable;
 import androidx.annotation.StringRes;
 import androidx.annotation.UiThread;
+import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.ViewModelProvider;
 
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
-import com.android.billingclient.api.BillingClient;
-import com.android.billingclient.api.BillingResult;
 import com.android.billingclient.api.Purchase;
 import com.jorgesys.gpb.billing.BillingManager;
 import com.jorgesys.gpb.billing.BillingProvider;
+import com.jorgesys.gpb.billing.MainThreadWatchdog;
+import com.jorgesys.gpb.billing.PurchaseReconciler;
+import com.jorgesys.gpb.billing.PurchaseUpdateStream;
 import com.jorgesys.gpb.skulist.AcquireFragment;
 
-import java.util.List;
-
 /**
  * Example game using Play Billing library.
  * <p>
  * Please follow steps inside the codelab to understand the best practices for this new library.
  */
-public class GamePlayActivity extends FragmentActivity implements BillingProvider {
+public class GamePlayActivity extends FragmentActivity implements BillingProvider,
+        UiRefreshScheduler.Target {
     // Debug tag, for logging
     private static final String TAG = "GamePlayActivity";
 
@@ -53,15 +54,16 @@ public class GamePlayActivity extends FragmentActivity implements BillingProvide
     private static final String DIALOG_TAG = "dialog";
 
     private BillingManager mBillingManager;
+    private PurchaseUpdateStream.Subscription mPurchaseSubscription;
     private AcquireFragment mAcquireFragment;
     private MainViewController mViewController;
+    private UiRefreshScheduler mUiRefreshScheduler;
+    private StartupMetrics mStartupMetrics;
 
     private View mScreenWait, mScreenMain;
     //private ImageView mCarImageView;
     private ImageView mGasImageView;
 
-    private AcknowledgePurchaseResponseListener acknowledgePurchaseResponseListener;
-
     /***
      * Metodo que manda a reconocer la compra
      * @param purchase la compra
@@ -81,68 +83,16 @@ public class GamePlayActivity extends FragmentActivity implements BillingProvide
         }
     }
 
-    /***
-     * Metodo para inicializar los listeners
-     */
-    private void setUpListeners() {
-        acknowledgePurchaseResponseListener = new AcknowledgePurchaseResponseListener() {
-            @Override
-            public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
-                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                    Log.i(TAG, "Purchase acknowledged ");
-                } else {
-                    Log.e(TAG, "onAcknowledgePurchaseResponse - responseCode: " + billingResult.getResponseCode());
-                }
-            }
-        };
-    }
-
-    /***
-     * Metodo que manda a reconocer la compra en dado caso que no se haya reconocido, esto tambien
-     * funciona para las compras que se hacen fuera de la aplicación
-     */
-    private void acknowledgePurchaseIfNeeded() {
-        Log.i(TAG, "acknowledgePurchaseIfNeeded");
-        if (mBillingManager.isConnected()) {
-            List<Purchase> purchaseList = mBillingManager.getPurchases();
-            if (purchaseList != null && purchaseList.size() > 0) {
-                Purchase purchase = purchaseList.get(0);
-                if (!purchase.isAcknowledged()) {
-                    if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
-                        //acknowledge purchase
-                        if (!purchase.isAcknowledged()) {
-                            if (acknowledgePurchaseResponseListener != null) {
-                                acknowledgePurchase(purchase, acknowledgePurchaseResponseListener);
-                            } else {
-                                Log.i(TAG, "acknowledgePurchaseResponseListener is null");
-                            }
-                        } else {
-                            Log.i(TAG, "Purchase already acknowledged");
-                        }
-                    } else if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
-                        Log.i(TAG, "Pending purchase");
-                    } else if (purchase.getPurchaseState() == Purchase.PurchaseState.UNSPECIFIED_STATE) {
-                        Log.i(TAG, "Unspecified state");
-                    }
-                } else {
-                    Log.w(TAG, "Purchase already acknowledged!.");
-                }
-            } else {
-                Log.w(TAG, "Purchase list is null");
-            }
-        } else {
-            Log.e(TAG, "billingClient not connected!.");
-        }
-    }
-
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mStartupMetrics = new StartupMetrics();
 
         setContentView(R.layout.activity_game_play);
-        setUpListeners();
+        mStartupMetrics.trackFirstFrame(this);
         // Start the controller and load game data
         mViewController = new MainViewController(this);
+        mUiRefreshScheduler = new UiRefreshScheduler(this);
 
         // Try to restore dialog fragment if we were showing it prior to screen rotation
         if (savedInstanceState != null) {
@@ -150,8 +100,31 @@ public class GamePlayActivity extends FragmentActivity implements BillingProvide
                     .findFragmentByTag(DIALOG_TAG);
         }
 
-        // Create and initialize BillingManager which talks to BillingLibrary
-        mBillingManager = new BillingManager(this);
+        // Debug and staging builds report billing calls that block the main thread
+        MainThreadWatchdog.install(BuildConfig.BILLING_WATCHDOG_BUDGET_MS);
+        // BillingManager talks to BillingLibrary, kept across rotations so they do not connect
+        // and query the purchases again
+        mBillingManager = new ViewModelProvider(this).get(BillingViewModel.class).getBillingManager();
+        // Only held for launching purchase flows, the manager keeps the application context
+        mBillingManager.attachActivity(this);
+        mBillingManager.setStartupListener(mStartupMetrics);
+        // Purchases are granted by reconciling the tank with what Play reports as owned
+        mBillingManager.setGrantHandler(new PurchaseReconciler.GrantHandler() {
+            @Override
+            public void onReconciled(PurchaseReconciler.Report report) {
+                mViewController.applyGrants(report);
+                mUiRefreshScheduler.invalidate(UiRefreshScheduler.DIRTY_GAUGE);
+            }
+        });
+        // Bursts of purchase updates are conflated into a single UI refresh
+        mPurchaseSubscription = mBillingManager.getPurchaseUpdates().subscribe(
+                ContextCompat.getMainExecutor(this), new PurchaseUpdateStream.Subscriber() {
+                    @Override
+                    public void onPurchasesUpdated(PurchaseUpdateStream.PurchaseUpdate update) {
+                        Log.d(TAG, "Purchases updated: " + update.getPurchases().size() + " owned");
+                        showRefreshedUi();
+                    }
+                });
 
         mScreenWait = findViewById(R.id.screen_wait);
         mScreenMain = findViewById(R.id.screen_main);
@@ -179,14 +152,14 @@ public class GamePlayActivity extends FragmentActivity implements BillingProvide
     @Override
     protected void onResume() {
         super.onResume();
+        // Pending acknowledgements are handled by BillingManager whenever purchases are refreshed
+        mBillingManager.onResume();
+    }
 
-        //TODO se reconoce compra desde la actividad princial 14/10/2020
-        new Handler(Looper.getMainLooper()).postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                acknowledgePurchaseIfNeeded();
-            }
-        }, 2500);
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mBillingManager.onPause();
     }
 
     @Override
@@ -220,18 +193,24 @@ public class GamePlayActivity extends FragmentActivity implements BillingProvide
         } else {
             mViewController.useGas();
             alert(R.string.alert_drove);
-            updateUi();
+            mUiRefreshScheduler.invalidate(UiRefreshScheduler.DIRTY_GAUGE);
         }
     }
 
     /**
-     * Remove loading spinner and refresh the UI
+     * Remove loading spinner and refresh the UI on the next frame
      */
     public void showRefreshedUi() {
         setWaitScreen(false);
-        updateUi();
+        mUiRefreshScheduler.invalidate(UiRefreshScheduler.DIRTY_GAUGE | UiRefreshScheduler.DIRTY_CATALOG);
+    }
 
-        if (isAcquireFragmentShown()) {
+    @Override
+    public void applyRefresh(int dirtyFlags) {
+        if ((dirtyFlags & UiRefreshScheduler.DIRTY_GAUGE) != 0) {
+            updateUi();
+        }
+        if ((dirtyFlags & UiRefreshScheduler.DIRTY_CATALOG) != 0 && isAcquireFragmentShown()) {
             mAcquireFragment.refreshUI();
         }
     }
@@ -297,6 +276,11 @@ public class GamePlayActivity extends FragmentActivity implements BillingProvide
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mBillingManager.destroy();
+        mUiRefreshScheduler.cancel();
+        mPurchaseSubscription.unsubscribe();
+        // The manager outlives this activity, see BillingViewModel
+        mBillingManager.setStartupListener(null);
+        mBillingManager.setGrantHandler(null);
+        mBillingManager.detachActivity(this);
     }
 }
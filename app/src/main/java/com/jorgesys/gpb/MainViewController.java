@@ -16,11 +16,14 @@
 
 package com.jorgesys.gpb;
 
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.util.Log;
 
 import androidx.annotation.DrawableRes;
 
+import com.jorgesys.gpb.billing.PurchaseReconciler;
+
 import static android.content.Context.MODE_PRIVATE;
 
 /**
@@ -36,13 +39,20 @@ public class MainViewController {
     // How many units (1/4 tank is our unit) fill in the tank.
     private static final int TANK_MAX = 4;
 
-    private GamePlayActivity mActivity;
+    // Each purchase of it fills one unit
+    private static final String SKU_GAS = "gas";
+
+    // Same file as GamePlayActivity.getPreferences(), read through the application context so
+    // the controller does not hold on to the activity
+    private static final String PREFS_NAME = "GamePlayActivity";
+
+    private final SharedPreferences mPrefs;
 
     // Current amount of gas in tank, in units
     private int mTank;
 
-    public MainViewController(GamePlayActivity activity) {
-        mActivity = activity;
+    public MainViewController(Context context) {
+        mPrefs = context.getApplicationContext().getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         loadData();
     }
 
@@ -52,6 +62,20 @@ public class MainViewController {
         Log.d(TAG, "Tank is now: " + mTank);
     }
 
+    /**
+     * Fills the tank with the gas purchases not granted yet and drains the refunded or revoked
+     * ones, saving once for the whole report
+     */
+    public void applyGrants(PurchaseReconciler.Report report) {
+        int delta = report.getGrantDelta(SKU_GAS);
+        if (delta == 0) {
+            return;
+        }
+        mTank = Math.max(0, Math.min(TANK_MAX, mTank + delta));
+        saveData();
+        Log.d(TAG, "Granted " + delta + " unit(s) of gas, tank is now: " + mTank);
+    }
+
     public boolean isTankEmpty() {
         return mTank <= 0;
     }
@@ -75,15 +99,14 @@ public class MainViewController {
      * SharedPreferences.
      */
     private void saveData() {
-        SharedPreferences.Editor spe = mActivity.getPreferences(MODE_PRIVATE).edit();
+        SharedPreferences.Editor spe = mPrefs.edit();
         spe.putInt("tank", mTank);
         spe.apply();
         Log.d(TAG, "Saved data: tank = " + String.valueOf(mTank));
     }
 
     private void loadData() {
-        SharedPreferences sp = mActivity.getPreferences(MODE_PRIVATE);
-        mTank = sp.getInt("tank", 2);
+        mTank = mPrefs.getInt("tank", 2);
         Log.d(TAG, "Loaded data: tank = " + String.valueOf(mTank));
     }
 }
\ No newline at end of file
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb;
+
+import android.app.Activity;
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+import androidx.annotation.MainThread;
+
+import com.jorgesys.gpb.billing.BillingManager;
+
+/**
+ * Startup instrumentation hook: records the time to the first frame and the time until billing
+ * is ready, separately, both measured from the start of the process when the platform knows it
+ * and from the creation of the activity otherwise.
+ */
+public class StartupMetrics implements BillingManager.StartupListener {
+    private static final String TAG = "StartupMetrics";
+
+    private final long mStartUptime;
+    private long mFirstFrameMillis = -1;
+    private long mBillingReadyMillis = -1;
+
+    @MainThread
+    public StartupMetrics() {
+        mStartUptime = Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                ? Process.getStartUptimeMillis() : SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Records the time to the first frame drawn by the activity's window
+     */
+    @MainThread
+    public void trackFirstFrame(Activity activity) {
+        final View decorView = activity.getWindow().getDecorView();
+        decorView.getViewTreeObserver().addOnDrawListener(new ViewTreeObserver.OnDrawListener() {
+            private boolean mDrawn;
+
+            @Override
+            public void onDraw() {
+                if (mDrawn) {
+                    return;
+                }
+                mDrawn = true;
+                final ViewTreeObserver.OnDrawListener listener = this;
+                // Runs once the frame is done, listeners cannot be removed while drawing
+                decorView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mFirstFrameMillis = SystemClock.uptimeMillis() - mStartUptime;
+                        Log.i(TAG, "Time to first frame: " + mFirstFrameMillis + "ms");
+                        decorView.getViewTreeObserver().removeOnDrawListener(listener);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void onBillingReady(int responseCode, long uptimeMillis) {
+        mBillingReadyMillis = uptimeMillis - mStartUptime;
+        Log.i(TAG, "Time to billing ready: " + mBillingReadyMillis + "ms, response: " + responseCode);
+    }
+
+    /**
+     * @return time to the first frame in milliseconds, -1 until it is drawn
+     */
+    public long getFirstFrameMillis() {
+        return mFirstFrameMillis;
+    }
+
+    /**
+     * @return time until the first connection to Play finished in milliseconds, -1 until then
+     */
+    public long getBillingReadyMillis() {
+        return mBillingReadyMillis;
+    }
+}
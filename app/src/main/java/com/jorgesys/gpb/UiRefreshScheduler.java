@@ -0,0 +1,112 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb;
+
+import android.util.Log;
+import android.view.Choreographer;
+
+import androidx.annotation.MainThread;
+
+import com.jorgesys.gpb.billing.BillingTrace;
+
+/**
+ * Coalesces UI refresh requests into at most one refresh per frame.
+ * <p>
+ * Callers mark parts of the UI dirty with {@link #invalidate(int)}; the first invalidation of a
+ * frame posts a Choreographer callback, and all the parts marked dirty until then are applied
+ * together when it runs. Everything happens on the main thread. Each refresh is traced with
+ * {@link BillingTrace} from its first invalidation to the end of the frame that applied it.
+ */
+public class UiRefreshScheduler {
+    private static final String TAG = "UiRefreshScheduler";
+    private static final String TRACE_NAME = "UiRefresh";
+
+    // Gas gauge of the main screen
+    public static final int DIRTY_GAUGE = 1;
+    // SKU list of the purchase screen
+    public static final int DIRTY_CATALOG = 1 << 1;
+
+    /**
+     * Applies the refresh of the parts that were marked dirty
+     */
+    public interface Target {
+        void applyRefresh(int dirtyFlags);
+    }
+
+    private final Target mTarget;
+    private int mDirtyFlags;
+    private boolean mFramePosted;
+    private int mTraceCookie;
+
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFramePosted = false;
+            int dirtyFlags = mDirtyFlags;
+            // Invalidations made while applying go to the next frame
+            mDirtyFlags = 0;
+            if (dirtyFlags != 0) {
+                BillingTrace.beginSection(TRACE_NAME);
+                try {
+                    mTarget.applyRefresh(dirtyFlags);
+                } finally {
+                    BillingTrace.endSection();
+                }
+            }
+            endTrace();
+        }
+    };
+
+    public UiRefreshScheduler(Target target) {
+        mTarget = target;
+    }
+
+    /**
+     * Marks parts of the UI as dirty, they are refreshed on the next frame
+     */
+    @MainThread
+    public void invalidate(int dirtyFlags) {
+        mDirtyFlags |= dirtyFlags;
+        if (!mFramePosted) {
+            mFramePosted = true;
+            mTraceCookie = BillingTrace.beginAsync(TRACE_NAME);
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        } else {
+            Log.v(TAG, "invalidate: coalesced with the pending frame");
+        }
+    }
+
+    /**
+     * Drops the pending refresh, e.g. when the UI is being destroyed
+     */
+    @MainThread
+    public void cancel() {
+        if (mFramePosted) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFramePosted = false;
+        }
+        mDirtyFlags = 0;
+        endTrace();
+    }
+
+    private void endTrace() {
+        if (mTraceCookie != 0) {
+            BillingTrace.endAsync(TRACE_NAME, mTraceCookie, BillingTrace.RESULT_NONE);
+            mTraceCookie = 0;
+        }
+    }
+}
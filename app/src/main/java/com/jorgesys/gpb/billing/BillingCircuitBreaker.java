@@ -0,0 +1,177 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+
+/**
+ * Circuit breaker in front of the Billing service, keyed by the response code that tripped it.
+ * <p>
+ * Each "unhealthy service" response code opens its own breaker for a code specific amount of
+ * time, doubled every time a probe fails. While a breaker is open every call fails fast with that
+ * code. Once the open time has elapsed the breaker goes half-open and lets a single probe call
+ * through; any healthy response closes all the breakers.
+ */
+public class BillingCircuitBreaker {
+    private static final String TAG = "BillingCircuitBreaker";
+
+    static final String DEBUG_MESSAGE_OPEN = "Billing service circuit breaker is open";
+    static final long MAX_OPEN_MS = 10 * 60 * 1000L;
+
+    // Response codes that denote an unhealthy service and how long they keep the breaker open
+    private static final int[] TRIPPING_CODES = {
+            BillingClient.BillingResponseCode.SERVICE_TIMEOUT,
+            BillingClient.BillingResponseCode.SERVICE_DISCONNECTED,
+            BillingClient.BillingResponseCode.SERVICE_UNAVAILABLE,
+            BillingClient.BillingResponseCode.BILLING_UNAVAILABLE,
+            BillingClient.BillingResponseCode.ERROR
+    };
+    private static final long[] BASE_OPEN_MS = {
+            5 * 1000L,
+            2 * 1000L,
+            10 * 1000L,
+            // Usually needs the user to fix the Play Store app or the account
+            60 * 1000L,
+            5 * 1000L
+    };
+
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int HALF_OPEN = 2;
+
+    private final int[] mStates = new int[TRIPPING_CODES.length];
+    private final long[] mOpenUntil = new long[TRIPPING_CODES.length];
+    private final long[] mOpenDurations = new long[TRIPPING_CODES.length];
+
+    /**
+     * Checks whether a call may go through, and if it is the half-open probe, records it as such.
+     *
+     * @return null if the call may proceed, otherwise the result to fail it with
+     */
+    public BillingResult tryAcquire(long nowMillis) {
+        int probe = -1;
+        for (int i = 0; i < TRIPPING_CODES.length; i++) {
+            if (mStates[i] == HALF_OPEN || (mStates[i] == OPEN && nowMillis < mOpenUntil[i])) {
+                return failFast(TRIPPING_CODES[i]);
+            }
+            if (mStates[i] == OPEN && probe == -1) {
+                probe = i;
+            }
+        }
+        if (probe != -1) {
+            Log.d(TAG, "tryAcquire: half-open probe for response code " + TRIPPING_CODES[probe]);
+            mStates[probe] = HALF_OPEN;
+        }
+        return null;
+    }
+
+    /**
+     * Records the result of a call that went through
+     */
+    public void onResult(int responseCode, long nowMillis) {
+        int index = indexOf(responseCode);
+        if (index == -1) {
+            if (isTripped()) {
+                Log.d(TAG, "onResult: service healthy again, closing");
+            }
+            for (int i = 0; i < TRIPPING_CODES.length; i++) {
+                mStates[i] = CLOSED;
+                mOpenDurations[i] = 0;
+            }
+            return;
+        }
+        for (int i = 0; i < TRIPPING_CODES.length; i++) {
+            if (i == index || mStates[i] == HALF_OPEN) {
+                mOpenDurations[i] = mOpenDurations[i] == 0 ? BASE_OPEN_MS[i]
+                        : Math.min(mOpenDurations[i] * 2, MAX_OPEN_MS);
+                mStates[i] = OPEN;
+                mOpenUntil[i] = nowMillis + mOpenDurations[i];
+            }
+        }
+        Log.w(TAG, "onResult: open for response code " + responseCode + " during "
+                + mOpenDurations[index] + "ms");
+    }
+
+    /**
+     * Hands back the half-open probe of a call that ended without reaching the service, so the
+     * next call can probe right away
+     */
+    public void releaseProbe(long nowMillis) {
+        for (int i = 0; i < TRIPPING_CODES.length; i++) {
+            if (mStates[i] == HALF_OPEN) {
+                mStates[i] = OPEN;
+                mOpenUntil[i] = nowMillis;
+            }
+        }
+    }
+
+    /**
+     * @return whether the half-open probe is running
+     */
+    public boolean isProbing() {
+        for (int state : mStates) {
+            if (state == HALF_OPEN) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return time at which the next half-open probe may run, Long.MAX_VALUE if the breaker is
+     * closed or a probe is already running
+     */
+    public long getNextProbeTime() {
+        long next = Long.MAX_VALUE;
+        for (int i = 0; i < TRIPPING_CODES.length; i++) {
+            if (mStates[i] == HALF_OPEN) {
+                return Long.MAX_VALUE;
+            }
+            if (mStates[i] == OPEN) {
+                next = Math.min(next, mOpenUntil[i]);
+            }
+        }
+        return next;
+    }
+
+    public boolean isTripped() {
+        for (int state : mStates) {
+            if (state != CLOSED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static BillingResult failFast(int responseCode) {
+        return BillingResult.newBuilder()
+                .setResponseCode(responseCode)
+                .setDebugMessage(DEBUG_MESSAGE_OPEN)
+                .build();
+    }
+
+    private static int indexOf(int responseCode) {
+        for (int i = 0; i < TRIPPING_CODES.length; i++) {
+            if (TRIPPING_CODES[i] == responseCode) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
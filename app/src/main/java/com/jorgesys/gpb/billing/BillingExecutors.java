@@ -0,0 +1,154 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The threads BillingManager runs on.
+ * <ul>
+ * <li>state: a serial executor that owns all of BillingManager's mutable state, every Play
+ * Billing callback hops onto it before touching anything</li>
+ * <li>background: blocking work such as the synchronous purchases query</li>
+ * <li>callback: where results are delivered to the app, the main thread by default</li>
+ * </ul>
+ * Tests can pass their own executors to run BillingManager deterministically.
+ */
+public final class BillingExecutors {
+
+    /**
+     * A serial executor that can also run commands after a delay
+     */
+    public interface SerialExecutor extends Executor {
+        void executeDelayed(Runnable command, long delayMillis);
+
+        /**
+         * Removes a command that was scheduled and has not run yet
+         */
+        void cancel(Runnable command);
+
+        boolean isCurrentThread();
+
+        /**
+         * Monotonic clock used for delays, deadlines and the circuit breaker
+         */
+        long uptimeMillis();
+    }
+
+    /**
+     * SerialExecutor backed by a Looper
+     */
+    public static final class HandlerExecutor implements SerialExecutor {
+        private final Handler mHandler;
+
+        public HandlerExecutor(Looper looper) {
+            mHandler = new Handler(looper);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+
+        @Override
+        public void executeDelayed(Runnable command, long delayMillis) {
+            mHandler.postDelayed(command, delayMillis);
+        }
+
+        @Override
+        public void cancel(Runnable command) {
+            mHandler.removeCallbacks(command);
+        }
+
+        @Override
+        public boolean isCurrentThread() {
+            return Looper.myLooper() == mHandler.getLooper();
+        }
+
+        @Override
+        public long uptimeMillis() {
+            return SystemClock.uptimeMillis();
+        }
+    }
+
+    private final SerialExecutor mState;
+    private final Executor mBackground;
+    private final SerialExecutor mCallback;
+    private final HandlerThread mStateThread;
+    private final ExecutorService mBackgroundService;
+
+    public BillingExecutors(SerialExecutor state, Executor background, SerialExecutor callback) {
+        this(state, background, callback, null, null);
+    }
+
+    private BillingExecutors(SerialExecutor state, Executor background, SerialExecutor callback,
+                             HandlerThread stateThread, ExecutorService backgroundService) {
+        mState = state;
+        mBackground = background;
+        mCallback = callback;
+        mStateThread = stateThread;
+        mBackgroundService = backgroundService;
+    }
+
+    /**
+     * Dedicated state thread, a single background thread and callbacks on the main thread
+     */
+    public static BillingExecutors createDefault() {
+        HandlerThread stateThread = new HandlerThread("BillingManager-state");
+        stateThread.start();
+        ExecutorService background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "BillingManager-background");
+            }
+        });
+        return new BillingExecutors(new HandlerExecutor(stateThread.getLooper()), background,
+                new HandlerExecutor(Looper.getMainLooper()), stateThread, background);
+    }
+
+    public SerialExecutor state() {
+        return mState;
+    }
+
+    public Executor background() {
+        return mBackground;
+    }
+
+    public SerialExecutor callback() {
+        return mCallback;
+    }
+
+    /**
+     * Stops the threads created by {@link #createDefault()}, once the work already queued is done.
+     * Executors passed in by the caller are left alone.
+     */
+    public void shutdown() {
+        if (mStateThread != null) {
+            mStateThread.quitSafely();
+        }
+        if (mBackgroundService != null) {
+            mBackgroundService.shutdown();
+        }
+    }
+}
@@ -16,8 +16,14 @@
 package com.jorgesys.gpb.billing;
 
 import android.app.Activity;
+import android.content.Context;
+import android.os.Looper;
+import android.os.MessageQueue;
 import android.util.Log;
 
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
 import com.android.billingclient.api.AcknowledgePurchaseParams;
 import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
 import com.android.billingclient.api.BillingClient;
@@ -25,63 +31,355 @@ import com.android.billingclient.api.BillingClientStateListener;
 import com.android.billingclient.api.BillingFlowParams;
 import com.android.billingclient.api.BillingResult;
 import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
 import com.android.billingclient.api.PurchasesUpdatedListener;
 import com.android.billingclient.api.SkuDetails;
 import com.android.billingclient.api.SkuDetailsParams;
 import com.android.billingclient.api.SkuDetailsResponseListener;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * TODO: Implement BillingManager that will handle all the interactions with Play Store
- * (via Billing library), maintain connection to it through BillingClient and cache
- * temporary states/data if needed.
+ * Handles all the interactions with Play Store (via Billing library), maintains the connection
+ * to it through BillingClient and caches temporary states/data if needed.
+ * <p>
+ * All mutable state is confined to the state executor of {@link BillingExecutors}: public
+ * methods and Play Billing callbacks hop onto it, blocking calls run on the background executor
+ * and results reach the app through the callback executor (the main thread by default). The
+ * few values read from other threads are published through volatile fields.
+ * <p>
+ * Only the application context is kept, so late callbacks from Play never retain an activity.
+ * Purchase flows are launched from the activity set with {@link #attachActivity(Activity)}.
  */
 public class BillingManager implements PurchasesUpdatedListener {
     private static final String TAG = "BillingManager";
-    private final BillingClient mBillingClient;
-    private final Activity mActivity;
+    // Built lazily on the state executor, see ensureInitialized()
+    private BillingClient mBillingClient;
+    private volatile boolean mInitRequested;
+    // Also read on the callback executor, so reports are not applied after destroy()
+    private volatile boolean mDestroyed;
+    private StartupListener mStartupListener;
+    private final Context mContext;
+    // Activity purchase flows are launched from, between attachActivity() and detachActivity()
+    private volatile Activity mActivity;
     //structure to retrieve the lists of all the SKU IDs for a particular SKU type from Google Play Developer Console
     private static final HashMap<String, List<String>> SKUS;
+    // Type of each SKU above, for lookups on the purchase update path
+    private static final HashMap<String, String> SKU_TYPES;
     private AcknowledgePurchaseResponseListener acknowledgePurchaseResponseListener;
-    private boolean connected;
+    private final BillingClientFactory mClientFactory;
+    // Tokens with an acknowledgement in flight, so a refresh racing it does not send another,
+    // and the ones acknowledged since Play last listed them
+    private final HashSet<String> mAcknowledging = new HashSet<>();
+    private final HashSet<String> mAcknowledged = new HashSet<>();
+    private volatile boolean connected;
+    private final PurchaseHistoryStore mHistoryStore;
+    private final SubscriptionRefreshScheduler mSubscriptionScheduler;
+    private final PendingPurchaseTracker mPendingTracker;
+    private final BillingExecutors mExecutors;
+    private final boolean mOwnsExecutors;
+    private final BillingCircuitBreaker mCircuitBreaker = new BillingCircuitBreaker();
+    // Operations started and not completed yet, cancelled on destroy()
+    private final HashSet<BillingOperation> mOperations = new HashSet<>();
+    private boolean mForeground;
+    // Owned purchases by token, as last reported by Play
+    private final LinkedHashMap<String, Purchase> mOwned = new LinkedHashMap<>();
+    // Immutable copies of the state above, for readers outside of the state executor
+    private volatile List<Purchase> mOwnedSnapshot = Collections.emptyList();
+    private volatile boolean mHasPendingPurchases;
+    private final PurchaseUpdateStream mPurchaseUpdates = new PurchaseUpdateStream();
+    // Shares the owned purchases with the other processes of the app, mapped on first publish
+    private EntitlementSnapshot.Writer mEntitlementWriter;
+    private boolean mEntitlementWriterMapped;
+    // Grants reconciled with Play once the owned purchases of every type are known, see
+    // reconcileGrants(). The reconciler is created on the first pass.
+    private PurchaseReconciler mReconciler;
+    private volatile PurchaseReconciler.GrantHandler mGrantHandler;
+    private final HashSet<String> mOwnedLoaded = new HashSet<>();
+    // A report is with the grant handler, passes wait for it to be committed and destroy() leaves
+    // the executors running until then
+    private boolean mReconciling;
+    private boolean mReconcileAgain;
+    // Operations waiting for the connection attempt in progress, if any
+    private final ArrayList<BillingOperation> mAwaitingConnection = new ArrayList<>();
+    private boolean mConnecting;
+    private long mConnectingSince;
+    private int mConnectionTraceCookie;
+    // Purchase updates sent while disconnected are lost, the purchases are re-queried on the
+    // next connection
+    private boolean mPurchasesStale;
+    // SKUs with a purchase flow running, from the tap until Play reports the result, and the
+    // trace cookie of each flow
+    private final HashMap<String, Integer> mRunningFlows = new HashMap<>();
+    private final MutableLiveData<Set<String>> mPurchaseFlows =
+            new MutableLiveData<>(Collections.<String>emptySet());
+    // Releases a launched flow whose result never comes, by SKU
+    private final HashMap<String, Runnable> mFlowDeadlines = new HashMap<>();
+    // Purchase updates from Play waiting for the state executor, guarded by mUpdateResults. A
+    // burst is drained by a single run of mDrainUpdatesRunnable.
+    private final ArrayDeque<BillingResult> mUpdateResults = new ArrayDeque<>();
+    private final ArrayDeque<List<Purchase>> mUpdatePurchases = new ArrayDeque<>();
+    private boolean mUpdatesScheduled;
+    // Only touched on the state executor, reused for every acknowledgement
+    private final AcknowledgePurchaseParams.Builder mAcknowledgeParams = AcknowledgePurchaseParams.newBuilder();
+
+    // Worst-case time for a connection plus a Play Billing call before callers get SERVICE_TIMEOUT
+    static final long OPERATION_TIMEOUT_MS = 10 * 1000L;
+    // launchBillingFlow only has to show the Play UI, the purchase result arrives separately
+    static final long PURCHASE_FLOW_TIMEOUT_MS = 5 * 1000L;
+    // Time given to the user in the Play purchase UI before the flow is considered lost
+    static final long PURCHASE_RESULT_TIMEOUT_MS = 5 * 60 * 1000L;
+    private static final String FLOW_TRACE_NAME = "purchaseFlow";
+    private static final String CONNECTION_TRACE_NAME = "startConnection";
+    // Debug message of the result operations get once the manager is destroyed
+    static final String DEBUG_MESSAGE_DESTROYED = "BillingManager destroyed";
+
+    /**
+     * A call to Play Billing guarded by the circuit breaker and bounded by a deadline.
+     * <p>
+     * Subclasses start the call in {@link #call()} and report its result through
+     * {@link #complete(BillingResult)}. If the breaker is open, the connection fails or the
+     * deadline passes first, {@link #onFailed(BillingResult)} is called instead and any late
+     * result from Play is dropped. Operations cancelled or started after {@link #destroy()} fail
+     * with SERVICE_DISCONNECTED, so callers always get an answer. Everything runs on the state
+     * executor.
+     */
+    private abstract class BillingOperation implements Runnable {
+        private final String mName;
+        private final long mTimeoutMs;
+        private boolean mDone;
+        private int mTraceCookie;
+        // Let through as the breaker's half-open probe
+        private boolean mProbe;
+
+        BillingOperation(String name, long timeoutMs) {
+            mName = name;
+            mTimeoutMs = timeoutMs;
+        }
+
+        /**
+         * Starts the Play Billing call, which has to end with {@link #complete(BillingResult)}
+         */
+        abstract void call();
+
+        /**
+         * Delivers a failure to the caller: rejected by the breaker, connection failure or timeout
+         */
+        abstract void onFailed(BillingResult billingResult);
+
+        final boolean isDone() {
+            return mDone;
+        }
+
+        final void start() {
+            mTraceCookie = BillingTrace.beginAsync(mName);
+            mOperations.add(this);
+            mExecutors.state().executeDelayed(this, mTimeoutMs);
+        }
+
+        /**
+         * @return false if the operation already failed or was cancelled, the result must then
+         * be dropped
+         */
+        final boolean complete(BillingResult billingResult) {
+            if (mDone) {
+                Log.w(TAG, mName + ": dropping late result " + billingResult.getResponseCode());
+                return false;
+            }
+            finish(billingResult.getResponseCode());
+            onServiceResult(billingResult.getResponseCode());
+            return true;
+        }
+
+        final void fail(BillingResult billingResult) {
+            if (!mDone) {
+                finish(billingResult.getResponseCode());
+                onFailed(billingResult);
+            }
+        }
+
+        /**
+         * Fails the operation for a reason that has nothing to do with Play, e.g. no activity to
+         * launch a flow from. The breaker learns nothing from it, but gets its probe back.
+         */
+        final void abandon(BillingResult billingResult) {
+            if (mDone) {
+                return;
+            }
+            if (mProbe) {
+                mCircuitBreaker.releaseProbe(mExecutors.state().uptimeMillis());
+                scheduleProbe();
+            }
+            fail(billingResult);
+        }
+
+        /**
+         * Fails the operation because the manager is destroyed, the breaker is left alone
+         */
+        final void cancel() {
+            fail(destroyedResult());
+        }
+
+        /**
+         * {@link #call()} in a trace section
+         */
+        final void callTraced() {
+            BillingTrace.beginSection("BillingManager " + mName);
+            try {
+                call();
+            } finally {
+                BillingTrace.endSection();
+            }
+        }
+
+        // Deadline
+        @Override
+        public final void run() {
+            if (mDone) {
+                return;
+            }
+            Log.w(TAG, mName + ": no result after " + mTimeoutMs + "ms");
+            onServiceResult(BillingClient.BillingResponseCode.SERVICE_TIMEOUT);
+            fail(BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.SERVICE_TIMEOUT)
+                    .setDebugMessage(mName + " timed out")
+                    .build());
+        }
+
+        private void finish(int resultCode) {
+            if (mTraceCookie != 0) {
+                BillingTrace.endAsync(mName, mTraceCookie, resultCode);
+                mTraceCookie = 0;
+            }
+            mDone = true;
+            mExecutors.state().cancel(this);
+            mOperations.remove(this);
+            mAwaitingConnection.remove(this);
+        }
+    }
+
+    /**
+     * Builds the BillingClient, tests pass one talking to a simulated billing service
+     */
+    interface BillingClientFactory {
+        BillingClient create(Context context, PurchasesUpdatedListener listener);
+    }
+
+    private static final BillingClientFactory PLAY_CLIENT_FACTORY = new BillingClientFactory() {
+        @Override
+        public BillingClient create(Context context, PurchasesUpdatedListener listener) {
+            return BillingClient.newBuilder(context).enablePendingPurchases().setListener(listener).build();
+        }
+    };
+
+    /**
+     * Startup instrumentation, called on the callback executor
+     */
+    public interface StartupListener {
+        /**
+         * @param responseCode result of the first connection to Play
+         * @param uptimeMillis {@link android.os.SystemClock#uptimeMillis()} when it finished
+         */
+        void onBillingReady(int responseCode, long uptimeMillis);
+    }
+
+    // Half-open probe of the circuit breaker, a purchases query is cheap and useful either way
+    private final Runnable mProbeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            queryPurchases(BillingClient.SkuType.SUBS);
+        }
+    };
+
+    // Drains the purchase updates queued by onPurchasesUpdated()
+    private final Runnable mDrainUpdatesRunnable = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                BillingResult billingResult;
+                List<Purchase> purchases;
+                synchronized (mUpdateResults) {
+                    billingResult = mUpdateResults.pollFirst();
+                    if (billingResult == null) {
+                        mUpdatesScheduled = false;
+                        return;
+                    }
+                    purchases = mUpdatePurchases.pollFirst();
+                }
+                handlePurchasesUpdated(billingResult, purchases == NO_PURCHASES ? null : purchases);
+            }
+        }
+    };
+
+    // Stands for a null list in mUpdatePurchases, ArrayDeque does not take nulls
+    private static final List<Purchase> NO_PURCHASES = Collections.emptyList();
 
     static {
         SKUS = new HashMap<>();
         //SKUs defined in Google Play Console
         SKUS.put(BillingClient.SkuType.INAPP, Arrays.asList("gas", "premium"));
         SKUS.put(BillingClient.SkuType.SUBS, Arrays.asList("subcription_gold"));
+        SKU_TYPES = new HashMap<>();
+        for (Map.Entry<String, List<String>> type : SKUS.entrySet()) {
+            for (String sku : type.getValue()) {
+                SKU_TYPES.put(sku, type.getKey());
+            }
+        }
     }
 
-    public BillingManager(/*Context context*/ Activity activity) {
-        mActivity = activity;
-        mBillingClient = BillingClient.newBuilder(mActivity).enablePendingPurchases().setListener(this).build();
-        mBillingClient.startConnection(new BillingClientStateListener() {
-            @Override
-            public void onBillingSetupFinished(BillingResult billingResult) {
-                Log.i(TAG, "onBillingSetupFinished()");
-                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                    Log.i(TAG, "onBillingSetupFinished() response: " + billingResult.getResponseCode());
-                    //The BillingClient is ready. You can query purchases here.
-                    connected = true;
-                    queryPurchases();
-                } else {
-                    connected = false;
-                    Log.w(TAG, "onBillingSetupFinished() error: " + billingResult.getResponseCode());
-                    //Try to restart the connection on the next request to
-                    //Google Play by calling the startConnection() method
-                }
-            }
+    /**
+     * @param context any context of the app, only its application context is kept
+     */
+    public BillingManager(Context context) {
+        this(context, BillingExecutors.createDefault(), true, PLAY_CLIENT_FACTORY);
+    }
 
-            @Override
-            public void onBillingServiceDisconnected() {
-                Log.w(TAG, "onBillingServiceDisconnected");
-            }
-        });
+    /**
+     * @param executors threads to run on, left running by {@link #destroy()}
+     */
+    public BillingManager(Context context, BillingExecutors executors) {
+        this(context, executors, false, PLAY_CLIENT_FACTORY);
+    }
 
+    BillingManager(Context context, BillingExecutors executors, BillingClientFactory clientFactory) {
+        this(context, executors, false, clientFactory);
+    }
+
+    private BillingManager(Context context, BillingExecutors executors, boolean ownsExecutors,
+                           BillingClientFactory clientFactory) {
+        mContext = context.getApplicationContext();
+        mExecutors = executors;
+        mOwnsExecutors = ownsExecutors;
+        mClientFactory = clientFactory;
+        mHistoryStore = new PurchaseHistoryStore(mContext);
+        mSubscriptionScheduler = new SubscriptionRefreshScheduler(mExecutors.state(),
+                new SubscriptionRefreshScheduler.RefreshCallback() {
+                    @Override
+                    public void onRefreshDue() {
+                        queryPurchases(BillingClient.SkuType.SUBS);
+                    }
+                });
+        mPendingTracker = new PendingPurchaseTracker(mExecutors.state(),
+                new PendingPurchaseTracker.Poller() {
+                    @Override
+                    public void pollPurchases(Set<String> skuTypes) {
+                        for (String skuType : skuTypes) {
+                            queryPurchases(skuType);
+                        }
+                    }
+                });
         acknowledgePurchaseResponseListener = new AcknowledgePurchaseResponseListener() {
             @Override
             public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
@@ -90,43 +388,393 @@ public class BillingManager implements PurchasesUpdatedListener {
                 Log.d(TAG, "onAcknowledgePurchaseResponse() responseCode: " + responseCode + " debugMessage: " + debugMessage);
             }
         };
+
+        // The BillingClient is set up once the app is idle, after its first frames, unless
+        // something needs billing before that
+        if (Looper.myLooper() != null) {
+            Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                @Override
+                public boolean queueIdle() {
+                    requestInitialization();
+                    return false;
+                }
+            });
+        } else {
+            requestInitialization();
+        }
     }
 
-    private void queryPurchases(){
-        Log.i(TAG, "queryPurchases()");
-        if (!mBillingClient.isReady()){
-            Log.e(TAG, "queryPurchases: mBillingClient is not Ready.");
+    /**
+     * Sets the activity purchase flows are launched from, until {@link #detachActivity(Activity)}
+     */
+    public void attachActivity(Activity activity) {
+        mActivity = activity;
+    }
+
+    /**
+     * Forgets the activity, unless another one was attached since. Flows launched afterwards fail
+     * until an activity is attached again.
+     */
+    public void detachActivity(Activity activity) {
+        if (mActivity == activity) {
+            mActivity = null;
+        }
+    }
+
+    /**
+     * @param listener notified once the first connection attempt to Play finishes
+     */
+    public void setStartupListener(final StartupListener listener) {
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                mStartupListener = listener;
+            }
+        });
+    }
+
+    private void requestInitialization() {
+        if (mInitRequested) {
+            return;
+        }
+        mInitRequested = true;
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                ensureInitialized();
+            }
+        });
+    }
+
+    /**
+     * Builds the BillingClient and starts the setup, on first use or once the app is idle,
+     * whichever comes first. Must be called on the state executor.
+     */
+    private void ensureInitialized() {
+        if (mBillingClient != null || mDestroyed) {
+            return;
+        }
+        mInitRequested = true;
+        Log.i(TAG, "ensureInitialized()");
+        mHistoryStore.preload(mExecutors.background());
+        mBillingClient = mClientFactory.create(mContext, this);
+        setup();
+    }
+
+    private void setup() {
+        execute(new BillingOperation("setup", OPERATION_TIMEOUT_MS) {
+            @Override
+            void call() {
+                complete(BillingResult.newBuilder()
+                        .setResponseCode(BillingClient.BillingResponseCode.OK).build());
+                notifyBillingReady(BillingClient.BillingResponseCode.OK);
+                //The BillingClient is ready. You can query purchases here.
+                // INAPP too, so purchases left pending by a previous session are tracked
+                queryPurchases(BillingClient.SkuType.INAPP);
+                queryPurchases(BillingClient.SkuType.SUBS);
+                syncPurchaseHistory(false, null);
+            }
+
+            @Override
+            void onFailed(BillingResult billingResult) {
+                //Try to restart the connection on the next request to
+                //Google Play by calling the startConnection() method
+                Log.w(TAG, "setup failed: " + billingResult.getResponseCode());
+                mPurchasesStale = true;
+                notifyBillingReady(billingResult.getResponseCode());
+            }
+        });
+    }
+
+    private void notifyBillingReady(final int responseCode) {
+        final StartupListener listener = mStartupListener;
+        if (listener == null) {
+            return;
         }
-        Log.d(TAG, "queryPurchases: SUBS");
-        Purchase.PurchasesResult result = mBillingClient.queryPurchases(BillingClient.SkuType.SUBS);
+        mStartupListener = null;
+        final long uptimeMillis = mExecutors.state().uptimeMillis();
+        runOnCallbackExecutor("onBillingReady", new Runnable() {
+            @Override
+            public void run() {
+                listener.onBillingReady(responseCode, uptimeMillis);
+            }
+        });
+    }
+
+    private void queryPurchases(@BillingClient.SkuType final String skuType){
+        Log.i(TAG, "queryPurchases()");
+        execute(new BillingOperation("queryPurchases " + skuType, OPERATION_TIMEOUT_MS) {
+            @Override
+            void call() {
+                final BillingOperation operation = this;
+                // queryPurchases() is a blocking call, keep it off the state executor
+                mExecutors.background().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Log.d(TAG, "queryPurchases: " + skuType);
+                        final Purchase.PurchasesResult result;
+                        BillingTrace.beginSection("BillingClient.queryPurchases");
+                        // Flagged if the background executor given is the main thread
+                        MainThreadWatchdog.begin("BillingClient.queryPurchases");
+                        try {
+                            result = mBillingClient.queryPurchases(skuType);
+                        } finally {
+                            MainThreadWatchdog.end();
+                            BillingTrace.endSection();
+                        }
+                        runOnStateExecutor(new Runnable() {
+                            @Override
+                            public void run() {
+                                onQueryPurchasesResult(operation, skuType, result);
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            void onFailed(BillingResult billingResult) {
+                Log.w(TAG, "queryPurchases: " + skuType + " failed: " + billingResult.getResponseCode());
+            }
+        });
+    }
+
+    private void onQueryPurchasesResult(BillingOperation operation, @BillingClient.SkuType String skuType,
+                                        Purchase.PurchasesResult result) {
         if (result == null){
             Log.i(TAG, "queryPurchases: null purchase result.");
+            if (operation.complete(BillingResult.newBuilder()
+                    .setResponseCode(BillingClient.BillingResponseCode.ERROR).build())) {
+                processPurchases(null);
+            }
+            return;
+        }
+        if (!operation.complete(result.getBillingResult())) {
+            return;
+        }
+        if (result.getPurchasesList() == null){
+            Log.i(TAG, "queryPurchases: null purchase list.");
             processPurchases(null);
         } else {
-            if (result.getPurchasesList() == null){
-                Log.i(TAG, "queryPurchases: null purchase list.");
-                processPurchases(null);
-            } else {
-                processPurchases(result.getPurchasesList());
+            if (result.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                if (BillingClient.SkuType.SUBS.equals(skuType)) {
+                    mSubscriptionScheduler.update(result.getPurchasesList(), System.currentTimeMillis());
+                }
+                mPendingTracker.onQueryResult(skuType, result.getPurchasesList());
+                replaceOwned(skuType, result.getPurchasesList());
             }
+            processPurchases(result.getPurchasesList());
         }
     }
 
-    private void processPurchases(List<Purchase> purchaseList){
-        Log.i(TAG, "processPurchases().");
-        if (purchaseList != null) {
-            Log.d(TAG, "processPurchases: " + purchaseList.size() + " purchases(s)");
-        } else {
-            Log.d(TAG, "processPurchases is empty.");
+    /**
+     * Replaces the owned purchases of a type with the full list returned by Play
+     */
+    private void replaceOwned(@BillingClient.SkuType String skuType, List<Purchase> purchases) {
+        Iterator<Purchase> iterator = mOwned.values().iterator();
+        while (iterator.hasNext()) {
+            if (skuType.equals(getSkuType(iterator.next().getSku()))) {
+                iterator.remove();
+            }
+        }
+        for (Purchase purchase : purchases) {
+            mOwned.put(purchase.getPurchaseToken(), purchase);
+        }
+        // Play reports the acknowledgement itself from now on
+        mAcknowledged.retainAll(mOwned.keySet());
+        boolean firstLoad = mOwnedLoaded.add(skuType);
+        publishState(purchases, firstLoad && mOwnedLoaded.size() == SKUS.size());
+        if (firstLoad) {
+            // publishState() only reconciles on change
+            reconcileGrants();
+        }
+    }
+
+    /**
+     * Publishes the owned purchases to other threads and, if they changed, to the subscribers
+     * of {@link #getPurchaseUpdates()}. Other processes only get them once every type was
+     * queried, see {@link #shareEntitlements(List)}.
+     *
+     * @param allLoaded whether this is the first time the purchases of every type are known
+     */
+    private void publishState(List<Purchase> updatedPurchases, boolean allLoaded) {
+        mHasPendingPurchases = mPendingTracker.hasPendingPurchases();
+        List<Purchase> owned = new ArrayList<>(mOwned.values());
+        // Purchase.equals() compares the original JSON, so a refresh that found nothing new
+        // costs the subscribers nothing
+        if (owned.equals(mOwnedSnapshot)) {
+            if (allLoaded) {
+                // Unchanged here but not shared yet, the snapshot may still hold the
+                // entitlements of the last session
+                shareEntitlements(mOwnedSnapshot);
+            }
+            return;
+        }
+        mOwnedSnapshot = Collections.unmodifiableList(owned);
+        mPurchaseUpdates.publish(mOwnedSnapshot, updatedPurchases);
+        if (mOwnedLoaded.size() == SKUS.size()) {
+            shareEntitlements(mOwnedSnapshot);
+        }
+        reconcileGrants();
+    }
+
+    /**
+     * Publishes the owned purchases to {@link EntitlementProvider} and other processes
+     * reading the {@link EntitlementSnapshot}. Readers take a SKU missing from it as not owned,
+     * so it is only published with the purchases of every type, e.g. not with the INAPP ones
+     * while SUBS are still being queried.
+     */
+    private void shareEntitlements(List<Purchase> owned) {
+        if (!mEntitlementWriterMapped) {
+            mEntitlementWriterMapped = true;
+            mEntitlementWriter = EntitlementSnapshot.Writer.get(mContext);
         }
+        if (mEntitlementWriter != null) {
+            mEntitlementWriter.publish(owned);
+        }
+    }
 
-        if (isUnchangedPurchaseList(purchaseList)) {
-            Log.d(TAG, "processPurchases: Purchase list has not changed.");
+    /**
+     * Sets the handler granting purchases to the user, which is then kept in sync with the owned
+     * purchases: see {@link PurchaseReconciler}. Pass null to stop, e.g. when the activity is
+     * destroyed.
+     */
+    public void setGrantHandler(final PurchaseReconciler.GrantHandler handler) {
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                mGrantHandler = handler;
+                reconcileGrants();
+            }
+        });
+    }
+
+    /**
+     * Runs a reconciliation pass: acknowledges what was missed and hands the grants and
+     * revocations to the grant handler in one report, committed once the handler returns.
+     * Revocations rely on a complete owned list, so nothing runs until every type was queried.
+     */
+    private void reconcileGrants() {
+        if (mGrantHandler == null || mDestroyed || mOwnedLoaded.size() < SKUS.size()) {
+            return;
+        }
+        if (mReconciling) {
+            mReconcileAgain = true;
             return;
         }
+        if (mReconciler == null) {
+            mReconciler = PurchaseReconciler.create(mContext);
+        }
+        TokenSet.Builder acknowledged = new TokenSet.Builder(mAcknowledged.size() + mAcknowledging.size());
+        for (String token : mAcknowledged) {
+            acknowledged.add(token);
+        }
+        for (String token : mAcknowledging) {
+            acknowledged.add(token);
+        }
+        final PurchaseReconciler.Report report = mReconciler.reconcile(mOwnedSnapshot, acknowledged.build());
+        for (int i = 0; i < report.getUnacknowledged().size(); i++) {
+            acknowledgePurchase(report.getUnacknowledged().get(i).getPurchaseToken());
+        }
+        if (!report.hasGrantChanges()) {
+            return;
+        }
+        mReconciling = true;
+        final PurchaseReconciler reconciler = mReconciler;
+        final PurchaseReconciler.GrantHandler handler = mGrantHandler;
+        runOnCallbackExecutor("onReconciled", new Runnable() {
+            @Override
+            public void run() {
+                if (mDestroyed || mGrantHandler != handler) {
+                    // Neither applied nor committed, so reported again by the next pass or launch
+                    Log.d(TAG, "reconcileGrants: grant handler gone, report dropped");
+                    runOnStateExecutor(new Runnable() {
+                        @Override
+                        public void run() {
+                            onReportDone(false);
+                        }
+                    });
+                    return;
+                }
+                handler.onReconciled(report);
+                // Writes the ledger file, so not on the main thread. The background executor is
+                // still running even if destroy() was called meanwhile, see onReportDone().
+                mExecutors.background().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        reconciler.commit(report);
+                        runOnStateExecutor(new Runnable() {
+                            @Override
+                            public void run() {
+                                onReportDone(report.hasMore());
+                            }
+                        });
+                    }
+                });
+            }
+        });
+    }
 
+    /**
+     * Runs the next pass if needed once a report was committed or dropped, or stops the executors
+     * destroy() left running for it
+     */
+    private void onReportDone(boolean hasMore) {
+        mReconciling = false;
+        if (mDestroyed) {
+            if (mOwnsExecutors) {
+                mExecutors.shutdown();
+            }
+        } else if (mReconcileAgain || hasMore) {
+            mReconcileAgain = false;
+            reconcileGrants();
+        }
+    }
+
+    /**
+     * Acknowledges what needs to be. Called for every purchase update: purchases already
+     * acknowledged, pending or being acknowledged cost no allocation unless debug logging is on
+     * for {@link #TAG}, each acknowledgement started allocates its operation.
+     */
+    private void processPurchases(List<Purchase> purchaseList){
+        Log.i(TAG, "processPurchases().");
+        if (purchaseList == null) {
+            Log.d(TAG, "processPurchases is empty.");
+        } else if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "processPurchases: " + purchaseList.size() + " purchases(s)");
+        }
+
+        // Not skipped when nothing changed, see handlePurchasesUpdated(): an unchanged purchase
+        // whose acknowledgement failed still has to be acknowledged
         if (purchaseList != null) {
             logAcknowledgmentStatus(purchaseList);
+            // Indexed, an iterator would be the only allocation of an update that changes nothing
+            for (int i = 0, size = purchaseList.size(); i < size; i++) {
+                acknowledgePurchaseIfNeeded(purchaseList.get(i));
+            }
+        }
+    }
+
+    /**
+     * Acknowledges the purchase if it was completed and is not acknowledged yet, this also
+     * covers the purchases made outside of the app
+     */
+    private void acknowledgePurchaseIfNeeded(Purchase purchase) {
+        if (purchase.isAcknowledged()) {
+            return;
+        }
+        if (purchase.getPurchaseState() == Purchase.PurchaseState.PURCHASED) {
+            if (mAcknowledging.contains(purchase.getPurchaseToken())
+                    || mAcknowledged.contains(purchase.getPurchaseToken())) {
+                Log.d(TAG, "acknowledgePurchaseIfNeeded: already in flight or done");
+                return;
+            }
+            acknowledgePurchase(purchase.getPurchaseToken());
+        } else if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+            // Followed up by mPendingTracker until the payment completes
+            Log.i(TAG, "Pending purchase");
+        } else if (purchase.getPurchaseState() == Purchase.PurchaseState.UNSPECIFIED_STATE) {
+            Log.i(TAG, "Unspecified state");
         }
     }
 
@@ -142,10 +790,13 @@ public class BillingManager implements PurchasesUpdatedListener {
      */
     private void logAcknowledgmentStatus(List<Purchase> purchasesList){
         Log.i(TAG, "logAcknowledgmentStatus()");
+        if (!Log.isLoggable(TAG, Log.DEBUG)) {
+            return;
+        }
         int ack_yes = 0;
         int ack_no = 0;
-        for (Purchase purchase : purchasesList){
-            if (purchase.isAcknowledged()){
+        for (int i = 0, size = purchasesList.size(); i < size; i++) {
+            if (purchasesList.get(i).isAcknowledged()){
                 ack_yes++;
             } else {
                 ack_no++;
@@ -177,53 +828,281 @@ public class BillingManager implements PurchasesUpdatedListener {
      */
     private void acknowledgePurchase(String purchaseToken) {
         Log.d(TAG, "acknowledgePurchase()");
-        AcknowledgePurchaseParams params = AcknowledgePurchaseParams.newBuilder()
+        acknowledgePurchase(purchaseToken, acknowledgePurchaseResponseListener);
+    }
+
+    private void acknowledgePurchase(final String purchaseToken, final AcknowledgePurchaseResponseListener listener) {
+        final AcknowledgePurchaseParams params = mAcknowledgeParams
                 .setPurchaseToken(purchaseToken)
                 .build();
-        /*mBillingClient.acknowledgePurchase(params, new AcknowledgePurchaseResponseListener() {
+        mAcknowledging.add(purchaseToken);
+        execute(new BillingOperation("acknowledgePurchase", OPERATION_TIMEOUT_MS) {
             @Override
-            public void onAcknowledgePurchaseResponse(BillingResult billingResult) {
-                int responseCode = billingResult.getResponseCode();
-                String debugMessage = billingResult.getDebugMessage();
-                Log.d(TAG, "acknowledgePurchase: " + responseCode + " " + debugMessage);
+            void call() {
+                final BillingOperation operation = this;
+                mBillingClient.acknowledgePurchase(params, new AcknowledgePurchaseResponseListener() {
+                    @Override
+                    public void onAcknowledgePurchaseResponse(final BillingResult billingResult) {
+                        runOnStateExecutor(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (operation.complete(billingResult)) {
+                                    mAcknowledging.remove(purchaseToken);
+                                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                                        mAcknowledged.add(purchaseToken);
+                                    }
+                                    deliverAcknowledgeResponse(listener, billingResult);
+                                }
+                            }
+                        });
+                    }
+                });
             }
-        });*/
-        mBillingClient.acknowledgePurchase(params, acknowledgePurchaseResponseListener);
+
+            // Left unacknowledged, retried once the service is healthy again or with the next
+            // purchases refresh
+            @Override
+            void onFailed(BillingResult billingResult) {
+                mAcknowledging.remove(purchaseToken);
+                deliverAcknowledgeResponse(listener, billingResult);
+            }
+        });
     }
 
-    /**
-     * Check whether the purchases have changed before posting changes.
-     */
-    private boolean isUnchangedPurchaseList(List<Purchase> purchasesList) {
-        Log.i(TAG, "isUnchangedPurchaseList()");
-        // TODO: Optimize to avoid updates with identical data.
-        return false;
+    private void deliverAcknowledgeResponse(final AcknowledgePurchaseResponseListener listener,
+                                            final BillingResult billingResult) {
+        if (listener == acknowledgePurchaseResponseListener) {
+            // Ours only logs, no need for a hop to the callback executor
+            listener.onAcknowledgePurchaseResponse(billingResult);
+            return;
+        }
+        runOnCallbackExecutor("onAcknowledgePurchaseResponse", new Runnable() {
+            @Override
+            public void run() {
+                listener.onAcknowledgePurchaseResponse(billingResult);
+            }
+        });
     }
 
+    /**
+     * Starts the purchase flow of a SKU, unless one is already running for it: repeated taps
+     * are merged into the running flow instead of queueing more connections and Play flows.
+     * See {@link #getPurchaseFlows()}.
+     */
     public void startPurchaseFlow(/*String skuId, String billingType*/final SkuDetails skuDetails) {
         Log.i(TAG, "startPurchaseFlow()");
-        //Specify a runnable to start when connection to Billing client is established
-        Runnable executeOnConnectedService = new Runnable() {
+        runOnStateExecutor(new Runnable() {
             @Override
             public void run() {
-                BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder().setSkuDetails(skuDetails).build();
-                mBillingClient.launchBillingFlow(mActivity, billingFlowParams);
+                if (mRunningFlows.containsKey(skuDetails.getSku())) {
+                    Log.d(TAG, "startPurchaseFlow: flow already running for " + skuDetails.getSku());
+                    return;
+                }
+                mRunningFlows.put(skuDetails.getSku(), BillingTrace.beginAsync(FLOW_TRACE_NAME));
+                publishPurchaseFlows();
+                launchBillingFlow(skuDetails);
+            }
+        });
+    }
+
+    /**
+     * SKUs whose purchase flow is running, e.g. to disable their buy buttons meanwhile
+     */
+    public LiveData<Set<String>> getPurchaseFlows() {
+        return mPurchaseFlows;
+    }
+
+    /**
+     * Ends the flow of a SKU, or all of them if it is null
+     */
+    private void endPurchaseFlows(String sku, int resultCode) {
+        if (sku == null ? mRunningFlows.isEmpty() : !mRunningFlows.containsKey(sku)) {
+            return;
+        }
+        Iterator<Map.Entry<String, Integer>> iterator = mRunningFlows.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Integer> flow = iterator.next();
+            if (sku == null || sku.equals(flow.getKey())) {
+                BillingTrace.endAsync(FLOW_TRACE_NAME, flow.getValue(), resultCode);
+                Runnable deadline = mFlowDeadlines.remove(flow.getKey());
+                if (deadline != null) {
+                    mExecutors.state().cancel(deadline);
+                }
+                iterator.remove();
+            }
+        }
+        publishPurchaseFlows();
+    }
+
+    /**
+     * Ends the flow of the SKU if Play never reports its result, so its button does not stay
+     * disabled
+     */
+    private void startFlowDeadline(final String sku) {
+        Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                mFlowDeadlines.remove(sku);
+                Log.w(TAG, "startPurchaseFlow: no result for " + sku + ", releasing the flow");
+                endPurchaseFlows(sku, BillingTrace.RESULT_NONE);
             }
         };
+        mFlowDeadlines.put(sku, deadline);
+        mExecutors.state().executeDelayed(deadline, PURCHASE_RESULT_TIMEOUT_MS);
+    }
 
-        // If Billing client was disconnected, we retry 1 time
-        // and if success, execute the query
-        startServiceConnectionIfNeeded(executeOnConnectedService);
+    private void publishPurchaseFlows() {
+        mPurchaseFlows.postValue(Collections.unmodifiableSet(new HashSet<>(mRunningFlows.keySet())));
+    }
+
+    private void launchBillingFlow(final SkuDetails skuDetails) {
+        //Specify an operation to start when connection to Billing client is established
+        execute(new BillingOperation("launchBillingFlow", PURCHASE_FLOW_TIMEOUT_MS) {
+            // Set by whichever comes first: the launch on the main thread, or a failure such as
+            // the deadline on the state executor. Only a failure that comes first releases the
+            // flow, otherwise a second tap could launch it again while the Play UI opens.
+            private final AtomicBoolean mClaimed = new AtomicBoolean();
+
+            @Override
+            void call() {
+                final BillingOperation operation = this;
+                // The Play purchase UI has to be launched from the main thread
+                runOnCallbackExecutor("launchBillingFlow", new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mClaimed.compareAndSet(false, true)) {
+                            Log.w(TAG, "startPurchaseFlow: " + skuDetails.getSku() + " released before its launch");
+                            return;
+                        }
+                        final Activity activity = mActivity;
+                        if (activity == null) {
+                            // Not a failure of Play, the breaker is left alone
+                            runOnStateExecutor(new Runnable() {
+                                @Override
+                                public void run() {
+                                    operation.abandon(BillingResult.newBuilder()
+                                            .setResponseCode(BillingClient.BillingResponseCode.DEVELOPER_ERROR)
+                                            .setDebugMessage("No activity attached")
+                                            .build());
+                                    endPurchaseFlows(skuDetails.getSku(), BillingClient.BillingResponseCode.DEVELOPER_ERROR);
+                                }
+                            });
+                            return;
+                        }
+                        BillingFlowParams billingFlowParams = BillingFlowParams.newBuilder().setSkuDetails(skuDetails).build();
+                        final BillingResult billingResult;
+                        BillingTrace.beginSection("BillingClient.launchBillingFlow");
+                        try {
+                            billingResult = mBillingClient.launchBillingFlow(activity, billingFlowParams);
+                        } finally {
+                            BillingTrace.endSection();
+                        }
+                        runOnStateExecutor(new Runnable() {
+                            @Override
+                            public void run() {
+                                // Also handled if the deadline passed during the launch, the
+                                // flow was kept for it
+                                if (!operation.isDone()) {
+                                    operation.complete(billingResult);
+                                }
+                                if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                                    Log.w(TAG, "startPurchaseFlow: launch failed: " + billingResult.getResponseCode());
+                                    endPurchaseFlows(skuDetails.getSku(), billingResult.getResponseCode());
+                                } else if (mRunningFlows.containsKey(skuDetails.getSku())) {
+                                    startFlowDeadline(skuDetails.getSku());
+                                }
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            void onFailed(BillingResult billingResult) {
+                Log.w(TAG, "startPurchaseFlow: failed: " + billingResult.getResponseCode());
+                if (mClaimed.compareAndSet(false, true)) {
+                    endPurchaseFlows(skuDetails.getSku(), billingResult.getResponseCode());
+                }
+            }
+        });
     }
 
     //PurchasesUpdatedListener This method will receive callbacks for all the updates on the future purchases
     @Override
     public void onPurchasesUpdated(BillingResult billingResult, List<Purchase> purchases) {
         Log.i(TAG, "onPurchasesUpdated()");
-        if (purchases != null && purchases.size() > 0){
-            acknowledgePurchase(purchases.get(0).getPurchaseToken());
+        // Queued rather than wrapped in a Runnable each, so that bursts of updates do not
+        // allocate on the main thread
+        synchronized (mUpdateResults) {
+            mUpdateResults.addLast(billingResult);
+            mUpdatePurchases.addLast(purchases == null ? NO_PURCHASES : purchases);
+            if (mUpdatesScheduled) {
+                return;
+            }
+            mUpdatesScheduled = true;
+        }
+        mExecutors.state().execute(mDrainUpdatesRunnable);
+    }
+
+    /**
+     * Handles an update from Play. Once warmed up, an update that re-delivers purchases already
+     * known, acknowledged or pending, allocates nothing unless debug logging is on for
+     * {@link #TAG}. Changed purchases are published and new ones acknowledged, which allocates.
+     */
+    private void handlePurchasesUpdated(BillingResult billingResult, List<Purchase> purchases) {
+        int responseCode = billingResult.getResponseCode();
+        if (responseCode != BillingClient.BillingResponseCode.OK || purchases == null) {
+            // Play shows one flow at a time and a cancelled or failed flow does not say which
+            // SKU it was for
+            endPurchaseFlows(null, responseCode);
         }
-        Log.d(TAG, "onPurchasesUpdated() response: " + billingResult.getResponseCode());
+        if (responseCode == BillingClient.BillingResponseCode.OK && purchases != null) {
+            boolean changed = false;
+            boolean subscriptionChanged = false;
+            for (int i = 0, size = purchases.size(); i < size; i++) {
+                Purchase purchase = purchases.get(i);
+                // Updates also come for purchases made outside the app, only this SKU's flow ends
+                endPurchaseFlows(purchase.getSku(), responseCode);
+                String skuType = getSkuType(purchase.getSku());
+                mPendingTracker.onPurchase(skuType, purchase);
+                if (!isSamePurchase(mOwned.put(purchase.getPurchaseToken(), purchase), purchase)) {
+                    changed = true;
+                    subscriptionChanged |= BillingClient.SkuType.SUBS.equals(skuType);
+                }
+            }
+            if (changed) {
+                publishState(purchases, false);
+            }
+            processPurchases(purchases);
+            if (subscriptionChanged) {
+                // A new or changed subscription has to be picked up by the scheduler
+                mSubscriptionScheduler.requestRefresh(System.currentTimeMillis());
+            }
+        }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "onPurchasesUpdated() response: " + responseCode);
+        }
+    }
+
+    /**
+     * Compares the JSON sent by Play, like Purchase.equals() minus the signature
+     */
+    private static boolean isSamePurchase(Purchase previous, Purchase purchase) {
+        return previous != null && previous.getOriginalJson().equals(purchase.getOriginalJson());
+    }
+
+    /**
+     * Stream of changes to the owned purchases, for any number of observers
+     */
+    public PurchaseUpdateStream getPurchaseUpdates() {
+        return mPurchaseUpdates;
+    }
+
+    /**
+     * Whether some purchase is waiting on a delayed payment method
+     */
+    public boolean hasPendingPurchases() {
+        return mHasPendingPurchases;
     }
 
     public List<String> getSkus(@BillingClient.SkuType String type) {
@@ -231,59 +1110,428 @@ public class BillingManager implements PurchasesUpdatedListener {
         return SKUS.get(type);
     }
 
+    /**
+     * @return the type of a SKU defined in {@link #SKUS}, INAPP for unknown SKUs
+     */
+    private static String getSkuType(String sku) {
+        String type = SKU_TYPES.get(sku);
+        return type == null ? BillingClient.SkuType.INAPP : type;
+    }
+
+    /**
+     * Queries the details of the given SKUs. On failure, including an open circuit breaker or an
+     * elapsed deadline, the listener receives the failing result and a null list. The listener is
+     * called on the callback executor.
+     */
     public void querySkuDetailsAsync(@BillingClient.SkuType final String itemType, final List<String> skuList, final SkuDetailsResponseListener listener) {
-        //Specify a runnable to start when the connection to Billing client is established
         Log.i(TAG, "querySkuDetailsAsync()");
-        Runnable executeOnConnectedService = new Runnable() {
+        runOnStateExecutor(new Runnable() {
             @Override
             public void run() {
+                querySkuDetails(itemType, skuList, listener);
+            }
+        });
+    }
+
+    private void querySkuDetails(final String itemType, final List<String> skuList, final SkuDetailsResponseListener listener) {
+        //Specify an operation to start when the connection to Billing client is established
+        execute(new BillingOperation("querySkuDetails " + itemType, OPERATION_TIMEOUT_MS) {
+            @Override
+            void call() {
+                final BillingOperation operation = this;
                 SkuDetailsParams skuDetailsParams = SkuDetailsParams.newBuilder().setSkusList(skuList).setType(itemType).build();
                 mBillingClient.querySkuDetailsAsync(skuDetailsParams, new SkuDetailsResponseListener() {
                     @Override
-                    public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
-                        listener.onSkuDetailsResponse(billingResult, skuDetailsList);
+                    public void onSkuDetailsResponse(final BillingResult billingResult, final List<SkuDetails> skuDetailsList) {
+                        runOnStateExecutor(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!operation.complete(billingResult)) {
+                                    return;
+                                }
+                                if (BillingClient.SkuType.SUBS.equals(itemType) && skuDetailsList != null) {
+                                    for (SkuDetails details : skuDetailsList) {
+                                        mSubscriptionScheduler.setSubscriptionPeriod(details.getSku(), details.getSubscriptionPeriod());
+                                    }
+                                }
+                                deliverSkuDetails(listener, billingResult, skuDetailsList);
+                            }
+                        });
                     }
                 });
             }
-        };
 
-        //If Billing client was disconnected, we retry 1 time
-        //and if success, execute the query
-        startServiceConnectionIfNeeded(executeOnConnectedService);
+            @Override
+            void onFailed(BillingResult billingResult) {
+                deliverSkuDetails(listener, billingResult, null);
+            }
+        });
+    }
 
+    private void deliverSkuDetails(final SkuDetailsResponseListener listener, final BillingResult billingResult,
+                                   final List<SkuDetails> skuDetailsList) {
+        runOnCallbackExecutor("onSkuDetailsResponse", new Runnable() {
+            @Override
+            public void run() {
+                listener.onSkuDetailsResponse(billingResult, skuDetailsList);
+            }
+        });
+    }
+
+    /**
+     * Brings the local purchase history up to date for both INAPP and SUBS.
+     * <p>
+     * Types synced less than {@link PurchaseHistoryStore#MIN_SYNC_INTERVAL_MS} ago are skipped
+     * unless {@code force} is set, and only new or changed records are written to the store.
+     * Once the sync finishes, read the history through {@link #getPurchaseHistoryStore()}.
+     * The listener is called on the callback executor.
+     */
+    public void syncPurchaseHistory(final boolean force, final PurchaseHistoryStore.SyncListener listener) {
+        Log.i(TAG, "syncPurchaseHistory()");
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.currentTimeMillis();
+                List<String> types = new ArrayList<>();
+                for (String type : SKUS.keySet()) {
+                    if (force || mHistoryStore.isSyncDue(type, now)) {
+                        types.add(type);
+                    }
+                }
+                if (types.isEmpty()) {
+                    Log.d(TAG, "syncPurchaseHistory: local history is recent enough");
+                    deliverHistorySynced(listener, BillingResult.newBuilder()
+                            .setResponseCode(BillingClient.BillingResponseCode.OK).build(), 0);
+                    return;
+                }
+                syncPurchaseHistory(types, 0, 0, listener);
+            }
+        });
     }
 
-    private void startServiceConnectionIfNeeded(final Runnable executeOnSuccess) {
-        Log.i(TAG, "startServiceConnectionIfNeeded()");
+    private void syncPurchaseHistory(final List<String> types, final int index, final int written,
+                                     final PurchaseHistoryStore.SyncListener listener) {
+        final String type = types.get(index);
+        execute(new BillingOperation("queryPurchaseHistory " + type, OPERATION_TIMEOUT_MS) {
+            @Override
+            void call() {
+                mBillingClient.queryPurchaseHistoryAsync(type, new PurchaseHistoryResponseListener() {
+                    @Override
+                    public void onPurchaseHistoryResponse(final BillingResult billingResult, final List<PurchaseHistoryRecord> records) {
+                        Log.d(TAG, "onPurchaseHistoryResponse() " + type + " response: " + billingResult.getResponseCode());
+                        runOnStateExecutor(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (!complete(billingResult)) {
+                                    return;
+                                }
+                                int total = written;
+                                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+                                    total += mHistoryStore.applyHistory(type, records, System.currentTimeMillis());
+                                }
+                                next(billingResult, total);
+                            }
+                        });
+                    }
+                });
+            }
+
+            @Override
+            void onFailed(BillingResult billingResult) {
+                next(billingResult, written);
+            }
+
+            private void next(BillingResult billingResult, int total) {
+                if (index + 1 < types.size()) {
+                    syncPurchaseHistory(types, index + 1, total, listener);
+                } else {
+                    deliverHistorySynced(listener, billingResult, total);
+                }
+            }
+        });
+    }
+
+    private void deliverHistorySynced(final PurchaseHistoryStore.SyncListener listener,
+                                      final BillingResult billingResult, final int newRecords) {
+        if (listener == null) {
+            return;
+        }
+        runOnCallbackExecutor("onHistorySynced", new Runnable() {
+            @Override
+            public void run() {
+                listener.onHistorySynced(billingResult, newRecords);
+            }
+        });
+    }
+
+    /**
+     * Local purchase history, kept up to date by {@link #syncPurchaseHistory}
+     */
+    public PurchaseHistoryStore getPurchaseHistoryStore() {
+        // Starts its preload if the idle-time initialisation did not yet
+        requestInitialization();
+        return mHistoryStore;
+    }
+
+    /**
+     * Runs the operation once the client is connected, connecting first if needed.
+     * <p>
+     * Fails fast while the circuit breaker is open, otherwise the operation's deadline covers
+     * both the connection and the call itself. Must be called on the state executor.
+     */
+    private void execute(final BillingOperation operation) {
+        Log.i(TAG, "execute() " + operation.mName);
+        if (mDestroyed) {
+            Log.w(TAG, "execute: " + operation.mName + " after destroy()");
+            operation.fail(destroyedResult());
+            return;
+        }
+        ensureInitialized();
+        BillingResult rejected = mCircuitBreaker.tryAcquire(mExecutors.state().uptimeMillis());
+        if (rejected != null) {
+            Log.w(TAG, "execute: " + operation.mName + " rejected, breaker open for " + rejected.getResponseCode());
+            operation.fail(rejected);
+            return;
+        }
+        operation.mProbe = mCircuitBreaker.isProbing();
+        operation.start();
         if (mBillingClient.isReady()) {
-            if (executeOnSuccess != null) {
-                executeOnSuccess.run();
+            operation.callTraced();
+            return;
+        }
+        // Operations issued while disconnected share a single connection attempt
+        mAwaitingConnection.add(operation);
+        long now = mExecutors.state().uptimeMillis();
+        // An attempt that outlived a whole operation deadline is not coming back
+        if (!mConnecting || now - mConnectingSince > OPERATION_TIMEOUT_MS) {
+            mConnecting = true;
+            mConnectingSince = now;
+            if (mConnectionTraceCookie != 0) {
+                // The stale attempt is given up on
+                BillingTrace.endAsync(CONNECTION_TRACE_NAME, mConnectionTraceCookie, BillingTrace.RESULT_NONE);
             }
-        } else {
+            mConnectionTraceCookie = BillingTrace.beginAsync(CONNECTION_TRACE_NAME);
+            // If Billing client was disconnected, we retry 1 time
+            // and if success, execute the operation
             mBillingClient.startConnection(new BillingClientStateListener() {
                 @Override
-                public void onBillingSetupFinished(BillingResult billingResult) {
-                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
-                        Log.i(TAG, "onBillingSetupFinished() response: " + billingResult.getResponseCode());
-                        if (executeOnSuccess != null) {
-                            executeOnSuccess.run();
+                public void onBillingSetupFinished(final BillingResult billingResult) {
+                    runOnStateExecutor(new Runnable() {
+                        @Override
+                        public void run() {
+                            onConnectionResult(billingResult);
                         }
-                    } else {
-                        Log.w(TAG, "onBillingSetupFinished() error code: " + billingResult.getResponseCode());
-                    }
+                    });
                 }
 
                 @Override
                 public void onBillingServiceDisconnected() {
                     Log.w(TAG, "onBillingServiceDisconnected()");
+                    connected = false;
+                    runOnStateExecutor(new Runnable() {
+                        @Override
+                        public void run() {
+                            mPurchasesStale = true;
+                            if (mConnecting) {
+                                // Lost before the setup finished, do not keep the waiters hanging
+                                onConnectionResult(BillingResult.newBuilder()
+                                        .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+                                        .build());
+                            } else if (!mDestroyed) {
+                                // A service that keeps dropping the connection is backed off
+                                onServiceResult(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED);
+                            }
+                        }
+                    });
                 }
             });
         }
     }
 
+    private void onConnectionResult(BillingResult billingResult) {
+        mConnecting = false;
+        if (mConnectionTraceCookie != 0) {
+            BillingTrace.endAsync(CONNECTION_TRACE_NAME, mConnectionTraceCookie, billingResult.getResponseCode());
+            mConnectionTraceCookie = 0;
+        }
+        List<BillingOperation> operations = new ArrayList<>(mAwaitingConnection);
+        mAwaitingConnection.clear();
+        if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK) {
+            Log.i(TAG, "onBillingSetupFinished() response: " + billingResult.getResponseCode());
+            connected = true;
+            for (BillingOperation operation : operations) {
+                if (!operation.isDone()) {
+                    operation.callTraced();
+                }
+            }
+            refreshStalePurchases();
+        } else {
+            Log.w(TAG, "onBillingSetupFinished() error code: " + billingResult.getResponseCode());
+            connected = false;
+            // One failed attempt, whatever the number of operations waiting on it
+            onServiceResult(billingResult.getResponseCode());
+            for (BillingOperation operation : operations) {
+                operation.fail(billingResult);
+            }
+        }
+    }
+
+    /**
+     * Feeds the result of a call that went through to the circuit breaker and, if that left it
+     * open, schedules the next half-open probe
+     */
+    private void onServiceResult(int responseCode) {
+        boolean wasTripped = mCircuitBreaker.isTripped();
+        mCircuitBreaker.onResult(responseCode, mExecutors.state().uptimeMillis());
+        scheduleProbe();
+        if (wasTripped && !mCircuitBreaker.isTripped()) {
+            refreshStalePurchases();
+            // Acknowledgements that failed or were rejected meanwhile would otherwise wait for
+            // the next refresh of their type, possibly the next start of the app
+            for (Purchase purchase : new ArrayList<>(mOwned.values())) {
+                acknowledgePurchaseIfNeeded(purchase);
+            }
+        }
+    }
+
+    /**
+     * Re-queries the purchases if updates may have been missed while disconnected, once the
+     * connection is back and the breaker lets the queries through
+     */
+    private void refreshStalePurchases() {
+        if (mPurchasesStale && mBillingClient.isReady() && !mCircuitBreaker.isTripped()) {
+            mPurchasesStale = false;
+            queryPurchases(BillingClient.SkuType.INAPP);
+            queryPurchases(BillingClient.SkuType.SUBS);
+        }
+    }
+
+    private void scheduleProbe() {
+        mExecutors.state().cancel(mProbeRunnable);
+        long next = mCircuitBreaker.getNextProbeTime();
+        if (mForeground && next != Long.MAX_VALUE) {
+            mExecutors.state().executeDelayed(mProbeRunnable,
+                    Math.max(0, next - mExecutors.state().uptimeMillis()));
+        }
+    }
+
+    private static BillingResult destroyedResult() {
+        return BillingResult.newBuilder()
+                .setResponseCode(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED)
+                .setDebugMessage(DEBUG_MESSAGE_DESTROYED)
+                .build();
+    }
+
+    /**
+     * Runs the command on the state executor, inline if already there. The inline runs are timed
+     * by the {@link MainThreadWatchdog}, which only counts them when the state executor passed in
+     * is the main thread.
+     */
+    private void runOnStateExecutor(Runnable command) {
+        if (mExecutors.state().isCurrentThread()) {
+            MainThreadWatchdog.begin("BillingManager state");
+            try {
+                command.run();
+            } finally {
+                MainThreadWatchdog.end();
+            }
+        } else {
+            mExecutors.state().execute(command);
+        }
+    }
+
+    /**
+     * Runs the command on the callback executor, timed by the {@link MainThreadWatchdog} since it
+     * calls into the app on the main thread by default
+     */
+    private void runOnCallbackExecutor(final String name, final Runnable command) {
+        mExecutors.callback().execute(new Runnable() {
+            @Override
+            public void run() {
+                MainThreadWatchdog.begin(name);
+                try {
+                    command.run();
+                } finally {
+                    MainThreadWatchdog.end();
+                }
+            }
+        });
+    }
+
+    /**
+     * Notifies the manager that the app came to the foreground, subscriptions are re-queried only
+     * if their state could have changed meanwhile
+     */
+    public void onResume() {
+        Log.i(TAG, "onResume()");
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                mForeground = true;
+                scheduleProbe();
+                mSubscriptionScheduler.onForeground(System.currentTimeMillis());
+                mPendingTracker.onForeground();
+            }
+        });
+    }
+
+    /**
+     * Notifies the manager that the app went to the background
+     */
+    public void onPause() {
+        Log.i(TAG, "onPause()");
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                mForeground = false;
+                mExecutors.state().cancel(mProbeRunnable);
+                mSubscriptionScheduler.onBackground();
+                mPendingTracker.onBackground();
+            }
+        });
+    }
+
+    /**
+     * Re-queries the subscriptions, coalesced with any refresh that is already due
+     */
+    public void refreshSubscriptions() {
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                mSubscriptionScheduler.requestRefresh(System.currentTimeMillis());
+            }
+        });
+    }
+
     public void destroy() {
         Log.i(TAG, "destroy()");
-        mBillingClient.endConnection();
+        mActivity = null;
+        runOnStateExecutor(new Runnable() {
+            @Override
+            public void run() {
+                mForeground = false;
+                mStartupListener = null;
+                mGrantHandler = null;
+                mSubscriptionScheduler.onBackground();
+                mPendingTracker.onBackground();
+                mExecutors.state().cancel(mProbeRunnable);
+                // First, so operations started by the failures below fail as well
+                mDestroyed = true;
+                for (BillingOperation operation : new ArrayList<>(mOperations)) {
+                    operation.cancel();
+                }
+                mAwaitingConnection.clear();
+                endPurchaseFlows(null, BillingTrace.RESULT_NONE);
+                if (mBillingClient != null) {
+                    mBillingClient.endConnection();
+                }
+                connected = false;
+                // Otherwise stopped once the report with the grant handler is committed
+                if (mOwnsExecutors && !mReconciling) {
+                    mExecutors.shutdown();
+                }
+            }
+        });
     }
 
     /**
@@ -297,32 +1545,34 @@ public class BillingManager implements PurchasesUpdatedListener {
 
     /**
      * Método para consultar las compras
+     * <p>
+     * Safe to call from any thread, it returns the purchases last reported by Play instead of
+     * querying it synchronously.
      *
      * @return lista de compras
      */
     public List<Purchase> getPurchases() {
-        List<Purchase> purchases = new ArrayList<>();
-        if (mBillingClient.isReady()) {
-            purchases = mBillingClient.queryPurchases(BillingClient.SkuType.SUBS).getPurchasesList();
-        }
-        return purchases;
+        // Entitlement checks must not wait for the idle-time initialisation
+        requestInitialization();
+        return mOwnedSnapshot;
     }
 
     /**
      * Metodo para reconocer las compras desde Main
      * @param purchase la compra
-     * @param listener el listener
+     * @param listener el listener, llamado en el callback executor
      */
-    public void acknowledgePurchaseFromMain(Purchase purchase, AcknowledgePurchaseResponseListener listener) {
+    public void acknowledgePurchaseFromMain(final Purchase purchase, final AcknowledgePurchaseResponseListener listener) {
         //acknowledge purchase
         if (!purchase.isAcknowledged()) {
             Log.i(TAG, "Acknowledging purchase");
-            AcknowledgePurchaseParams acknowledgePurchaseParams = AcknowledgePurchaseParams
-                    .newBuilder()
-                    .setPurchaseToken(purchase.getPurchaseToken())
-                    .build();
             if (listener != null) {
-                mBillingClient.acknowledgePurchase(acknowledgePurchaseParams, listener);
+                runOnStateExecutor(new Runnable() {
+                    @Override
+                    public void run() {
+                        acknowledgePurchase(purchase.getPurchaseToken(), listener);
+                    }
+                });
             } else {
                 Log.i(TAG, "acknowledgePurchaseResponseListener is null");
             }
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Trace;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Trace instrumentation for billing operations.
+ * <p>
+ * Synchronous work is wrapped in {@link Trace} sections. Operations that span callbacks are
+ * async sections, linked from request to callback by a cookie (API 29+ for the system trace),
+ * and are also recorded in an in-memory ring buffer of the last {@link #CAPACITY} operations
+ * which {@link #exportTimeline(Context)} writes in the Chrome trace event format. Timestamps
+ * come from {@link System#nanoTime()}, the same monotonic clock as the system trace, so the
+ * timeline lines up with frame timings captured at the same time.
+ */
+public final class BillingTrace {
+    private static final String TAG = "BillingTrace";
+
+    static final int CAPACITY = 256;
+    // Async sections left open are forgotten past this, e.g. a flow whose result never came
+    private static final int MAX_OPEN = 64;
+    /**
+     * Result code of operations that ended without a result, e.g. cancelled on destroy
+     */
+    public static final int RESULT_NONE = Integer.MIN_VALUE;
+
+    private static final Object sLock = new Object();
+    private static int sNextCookie;
+    // Guarded by sLock: cookie -> start time of the open async sections
+    private static final LinkedHashMap<Integer, Long> sOpen = new LinkedHashMap<Integer, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Long> eldest) {
+            return size() > MAX_OPEN;
+        }
+    };
+    // Guarded by sLock: ring buffer of finished operations
+    private static final String[] sNames = new String[CAPACITY];
+    private static final int[] sCookies = new int[CAPACITY];
+    private static final long[] sStarts = new long[CAPACITY];
+    private static final long[] sEnds = new long[CAPACITY];
+    private static final int[] sResults = new int[CAPACITY];
+    private static final String[] sThreads = new String[CAPACITY];
+    private static int sHead;
+    private static int sCount;
+
+    private BillingTrace() {
+    }
+
+    /**
+     * Starts a synchronous section on the current thread, {@link #endSection()} must follow on
+     * the same thread
+     */
+    public static void beginSection(String name) {
+        Trace.beginSection(name);
+    }
+
+    public static void endSection() {
+        Trace.endSection();
+    }
+
+    /**
+     * Starts an async section, ended by {@link #endAsync(String, int, int)} with the returned
+     * cookie, possibly on another thread
+     */
+    public static int beginAsync(String name) {
+        int cookie;
+        synchronized (sLock) {
+            cookie = ++sNextCookie;
+            sOpen.put(cookie, System.nanoTime());
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.beginAsyncSection(name, cookie);
+        }
+        return cookie;
+    }
+
+    /**
+     * Ends an async section and records it in the timeline
+     *
+     * @param resultCode BillingResponseCode of the operation or {@link #RESULT_NONE}
+     */
+    public static void endAsync(String name, int cookie, int resultCode) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            Trace.endAsyncSection(name, cookie);
+        }
+        long end = System.nanoTime();
+        synchronized (sLock) {
+            Long start = sOpen.remove(cookie);
+            if (start != null) {
+                record(name, cookie, start, end, resultCode);
+            }
+        }
+    }
+
+    // Called with sLock held
+    private static void record(String name, int cookie, long start, long end, int resultCode) {
+        sNames[sHead] = name;
+        sCookies[sHead] = cookie;
+        sStarts[sHead] = start;
+        sEnds[sHead] = end;
+        sResults[sHead] = resultCode;
+        sThreads[sHead] = Thread.currentThread().getName();
+        sHead = (sHead + 1) % CAPACITY;
+        sCount = Math.min(sCount + 1, CAPACITY);
+    }
+
+    /**
+     * Writes the recorded operations, oldest first, as a Chrome trace event JSON file that can be
+     * opened in Perfetto or chrome://tracing
+     *
+     * @return the file written in the app cache directory
+     */
+    public static File exportTimeline(Context context) throws IOException {
+        File file = new File(context.getCacheDir(), "billing_timeline.json");
+        Writer writer = new FileWriter(file);
+        try {
+            writeTimeline(writer);
+        } finally {
+            writer.close();
+        }
+        Log.i(TAG, "exportTimeline: " + file);
+        return file;
+    }
+
+    static void writeTimeline(Writer writer) throws IOException {
+        StringBuilder json = new StringBuilder("{\"traceEvents\":[");
+        synchronized (sLock) {
+            int first = (sHead - sCount + CAPACITY) % CAPACITY;
+            for (int i = 0; i < sCount; i++) {
+                int index = (first + i) % CAPACITY;
+                if (i > 0) {
+                    json.append(',');
+                }
+                // Async begin/end pair, linked by the cookie as id
+                appendEvent(json, index, "b", sStarts[index]).append(',');
+                appendEvent(json, index, "e", sEnds[index]);
+            }
+        }
+        json.append("]}");
+        writer.write(json.toString());
+    }
+
+    private static StringBuilder appendEvent(StringBuilder json, int index, String phase, long timeNanos) {
+        json.append("{\"name\":\"").append(escape(sNames[index]))
+                .append("\",\"cat\":\"billing\",\"ph\":\"").append(phase)
+                .append("\",\"pid\":0,\"tid\":\"").append(escape(sThreads[index]))
+                .append("\",\"ts\":").append(timeNanos / 1000)
+                .append(",\"id\":").append(sCookies[index]);
+        if (sResults[index] != RESULT_NONE) {
+            json.append(",\"args\":{\"responseCode\":").append(sResults[index]).append('}');
+        }
+        return json.append('}');
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.List;
+
+/**
+ * Read-only view of the {@link EntitlementSnapshot} for the other processes of the app, as a
+ * convenience for callers that prefer a ContentResolver query.
+ * <p>
+ * content://&lt;applicationId&gt;.entitlements/entitlements lists the owned SKUs,
+ * .../entitlements/&lt;sku&gt; only the purchases of that SKU. The provider is not exported and
+ * runs in the app's main process, the one that runs BillingManager, so a query from another
+ * process is an IPC call that starts that process if needed. It reads the mapped snapshot and
+ * never waits for Play. Processes that must not bind to the app read the snapshot directly with
+ * {@link EntitlementSnapshot.Reader}, without IPC.
+ */
+public class EntitlementProvider extends ContentProvider {
+    private static final String TAG = "EntitlementProvider";
+
+    public static final String PATH_ENTITLEMENTS = "entitlements";
+
+    public static final String COLUMN_SKU = "sku";
+    // One of the EntitlementSnapshot.STATE_* constants
+    public static final String COLUMN_STATE = "state";
+    public static final String COLUMN_ACKNOWLEDGED = "acknowledged";
+    public static final String COLUMN_PURCHASE_TIME = "purchase_time";
+    public static final String COLUMN_VERSION = "version";
+
+    private static final String[] COLUMNS = {
+            COLUMN_SKU, COLUMN_STATE, COLUMN_ACKNOWLEDGED, COLUMN_PURCHASE_TIME, COLUMN_VERSION
+    };
+
+    private EntitlementSnapshot.Reader mReader;
+
+    /**
+     * @return the URI listing all the entitlements of the app
+     */
+    public static Uri getContentUri(Context context) {
+        return Uri.parse("content://" + context.getPackageName() + "." + PATH_ENTITLEMENTS
+                + "/" + PATH_ENTITLEMENTS);
+    }
+
+    @Override
+    public boolean onCreate() {
+        mReader = new EntitlementSnapshot.Reader(getContext());
+        return true;
+    }
+
+    /**
+     * @return the entitlements, null if the URI is unknown or no consistent snapshot could be
+     * read, in which case only the billing process can tell
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        List<String> segments = uri.getPathSegments();
+        if (segments.isEmpty() || segments.size() > 2 || !PATH_ENTITLEMENTS.equals(segments.get(0))) {
+            Log.w(TAG, "query: unknown URI " + uri);
+            return null;
+        }
+        String sku = segments.size() == 2 ? segments.get(1) : null;
+        EntitlementSnapshot snapshot = mReader.read();
+        if (snapshot == null) {
+            Log.w(TAG, "query: no consistent snapshot");
+            return null;
+        }
+        MatrixCursor cursor = new MatrixCursor(projection != null ? projection : COLUMNS);
+        for (EntitlementSnapshot.Entitlement entitlement : snapshot.getEntitlements()) {
+            if (sku != null && !sku.equals(entitlement.getSku())) {
+                continue;
+            }
+            cursor.newRow()
+                    .add(COLUMN_SKU, entitlement.getSku())
+                    .add(COLUMN_STATE, entitlement.getState())
+                    .add(COLUMN_ACKNOWLEDGED, entitlement.isAcknowledged() ? 1 : 0)
+                    .add(COLUMN_PURCHASE_TIME, entitlement.getPurchaseTime())
+                    .add(COLUMN_VERSION, snapshot.getVersion());
+        }
+        return cursor;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException("Entitlements are read-only");
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Entitlements are read-only");
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException("Entitlements are read-only");
+    }
+}
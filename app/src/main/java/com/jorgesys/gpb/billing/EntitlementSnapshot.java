@@ -0,0 +1,423 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Versioned copy of the entitlements, i.e. the purchases owned according to Play, shared with
+ * the other processes of the app (widgets, services) through a memory-mapped file.
+ * <p>
+ * BillingManager publishes every change of its owned purchases through {@link Writer}, other
+ * processes check them with a {@link Reader} without binding to Play or to the app process.
+ * The file is guarded like a seqlock: the writer makes the sequence odd while it writes and
+ * even again once done, readers retry until they read the same even sequence before and after
+ * the entries. A checksum of the entries also catches reads torn by the lack of memory barriers
+ * between processes. The last snapshot survives restarts, so it is readable before the app
+ * connects to Play again.
+ * <p>
+ * See also {@link EntitlementProvider}, which serves the same data through a ContentProvider,
+ * at the cost of an IPC call to the app's main process.
+ */
+public final class EntitlementSnapshot {
+    private static final String TAG = "EntitlementSnapshot";
+
+    // Not owned, or owned in a state that grants nothing
+    public static final int STATE_NONE = 0;
+    public static final int STATE_PURCHASED = 1;
+    // Waiting on a delayed payment method
+    public static final int STATE_PENDING = 2;
+    // No consistent snapshot: none published yet or the writer died while writing
+    public static final int STATE_UNKNOWN = -1;
+
+    static final String FILE_NAME = "entitlements.snapshot";
+    static final int MAX_ENTRIES = 64;
+    // Play product IDs are lowercase letters, digits, underscores and periods, stored as ASCII
+    static final int MAX_SKU_LENGTH = 64;
+
+    private static final int MAGIC = 0x454e544c;
+    private static final int FORMAT_VERSION = 1;
+
+    // Header
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int COUNT_OFFSET = 16;
+    private static final int CHECKSUM_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+
+    // Entries, right after the header
+    private static final int HASH_OFFSET = 0;
+    private static final int PURCHASE_TIME_OFFSET = 8;
+    private static final int STATE_OFFSET = 16;
+    private static final int ACKNOWLEDGED_OFFSET = 17;
+    private static final int SKU_LENGTH_OFFSET = 18;
+    private static final int SKU_OFFSET = 20;
+    private static final int ENTRY_SIZE = 96;
+
+    static final int FILE_SIZE = HEADER_SIZE + MAX_ENTRIES * ENTRY_SIZE;
+
+    // Readers give up after this many torn reads in a row, a writer holds the lock for microseconds
+    private static final int MAX_READ_ATTEMPTS = 1000;
+
+    /**
+     * An owned SKU
+     */
+    public static final class Entitlement {
+        private final String mSku;
+        private final int mState;
+        private final boolean mAcknowledged;
+        private final long mPurchaseTime;
+
+        Entitlement(String sku, int state, boolean acknowledged, long purchaseTime) {
+            mSku = sku;
+            mState = state;
+            mAcknowledged = acknowledged;
+            mPurchaseTime = purchaseTime;
+        }
+
+        public String getSku() {
+            return mSku;
+        }
+
+        /**
+         * @return STATE_PURCHASED or STATE_PENDING
+         */
+        public int getState() {
+            return mState;
+        }
+
+        public boolean isAcknowledged() {
+            return mAcknowledged;
+        }
+
+        public long getPurchaseTime() {
+            return mPurchaseTime;
+        }
+    }
+
+    private final long mVersion;
+    private final List<Entitlement> mEntitlements;
+
+    private EntitlementSnapshot(long version, List<Entitlement> entitlements) {
+        mVersion = version;
+        mEntitlements = entitlements;
+    }
+
+    /**
+     * @return number of times the entitlements were published, it only grows
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public List<Entitlement> getEntitlements() {
+        return mEntitlements;
+    }
+
+    /**
+     * @return STATE_PURCHASED if some purchase of the SKU completed, otherwise STATE_PENDING if
+     * one is pending, otherwise STATE_NONE
+     */
+    public int getState(String sku) {
+        int state = STATE_NONE;
+        for (Entitlement entitlement : mEntitlements) {
+            if (entitlement.getSku().equals(sku)) {
+                state = mergeState(state, entitlement.getState());
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Writes the snapshot, from the process that owns BillingManager
+     */
+    static final class Writer {
+        private static Writer sInstance;
+
+        private final MappedByteBuffer mBuffer;
+
+        private Writer(MappedByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        /**
+         * @return the writer of the app, null if the file cannot be mapped
+         */
+        static synchronized Writer get(Context context) {
+            if (sInstance != null) {
+                return sInstance;
+            }
+            File dir = context.getFilesDir();
+            if (dir == null) {
+                Log.w(TAG, "No files directory, entitlements are not shared");
+                return null;
+            }
+            try {
+                sInstance = open(new File(dir, FILE_NAME));
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot map " + FILE_NAME + ", entitlements are not shared", e);
+            }
+            return sInstance;
+        }
+
+        static Writer open(File path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "rw");
+            try {
+                // The mapping outlives the file descriptor
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+                if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(FORMAT_OFFSET) != FORMAT_VERSION) {
+                    // New file or older format, readers see nothing consistent until the first
+                    // publish
+                    buffer.putLong(SEQUENCE_OFFSET, 1);
+                    buffer.putInt(FORMAT_OFFSET, FORMAT_VERSION);
+                    buffer.putInt(MAGIC_OFFSET, MAGIC);
+                }
+                return new Writer(buffer);
+            } finally {
+                file.close();
+            }
+        }
+
+        /**
+         * Replaces the entitlements with the given owned purchases and bumps the version.
+         * Purchases in an unspecified state and SKUs that do not fit are left out.
+         */
+        synchronized void publish(List<Purchase> owned) {
+            // Odd while writing, also if a previous writer died halfway
+            long sequence = mBuffer.getLong(SEQUENCE_OFFSET) | 1;
+            mBuffer.putLong(SEQUENCE_OFFSET, sequence);
+            int count = 0;
+            for (int i = 0, size = owned.size(); i < size && count < MAX_ENTRIES; i++) {
+                Purchase purchase = owned.get(i);
+                int state = toState(purchase.getPurchaseState());
+                String sku = purchase.getSku();
+                if (state == STATE_NONE || !isStorable(sku)) {
+                    continue;
+                }
+                int offset = HEADER_SIZE + count * ENTRY_SIZE;
+                mBuffer.putLong(offset + HASH_OFFSET, hash(sku));
+                mBuffer.putLong(offset + PURCHASE_TIME_OFFSET, purchase.getPurchaseTime());
+                mBuffer.put(offset + STATE_OFFSET, (byte) state);
+                mBuffer.put(offset + ACKNOWLEDGED_OFFSET, (byte) (purchase.isAcknowledged() ? 1 : 0));
+                mBuffer.putShort(offset + SKU_LENGTH_OFFSET, (short) sku.length());
+                for (int c = 0; c < MAX_SKU_LENGTH; c++) {
+                    mBuffer.put(offset + SKU_OFFSET + c, c < sku.length() ? (byte) sku.charAt(c) : 0);
+                }
+                count++;
+            }
+            if (count == MAX_ENTRIES && owned.size() > MAX_ENTRIES) {
+                Log.w(TAG, "publish: only the first " + MAX_ENTRIES + " entitlements are shared");
+            }
+            mBuffer.putInt(COUNT_OFFSET, count);
+            mBuffer.putLong(CHECKSUM_OFFSET, checksum(mBuffer, count));
+            mBuffer.putLong(SEQUENCE_OFFSET, sequence + 1);
+        }
+
+        private static boolean isStorable(String sku) {
+            if (sku == null || sku.length() > MAX_SKU_LENGTH) {
+                Log.w(TAG, "publish: SKU left out: " + sku);
+                return false;
+            }
+            for (int i = 0; i < sku.length(); i++) {
+                if (sku.charAt(i) > 0x7f) {
+                    Log.w(TAG, "publish: SKU left out: " + sku);
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads the snapshot, from any process and thread of the app. Checks by SKU do not allocate.
+     */
+    public static final class Reader {
+        private final File mFile;
+        // Mapped on first use, once the writer has created the file
+        private volatile ByteBuffer mBuffer;
+
+        public Reader(Context context) {
+            this(new File(context.getFilesDir(), FILE_NAME));
+        }
+
+        Reader(File file) {
+            mFile = file;
+        }
+
+        /**
+         * @return one of the STATE_* constants, STATE_UNKNOWN if there is no consistent snapshot,
+         * in which case only BillingManager can tell
+         */
+        public int getState(String sku) {
+            ByteBuffer buffer = map();
+            if (buffer == null) {
+                return STATE_UNKNOWN;
+            }
+            long hash = hash(sku);
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long sequence = buffer.getLong(SEQUENCE_OFFSET);
+                if ((sequence & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                int count = buffer.getInt(COUNT_OFFSET);
+                if (count < 0 || count > MAX_ENTRIES) {
+                    continue;
+                }
+                int state = STATE_NONE;
+                for (int i = 0; i < count; i++) {
+                    int offset = HEADER_SIZE + i * ENTRY_SIZE;
+                    if (buffer.getLong(offset + HASH_OFFSET) == hash && skuEquals(buffer, offset, sku)) {
+                        state = mergeState(state, buffer.get(offset + STATE_OFFSET));
+                    }
+                }
+                if (buffer.getLong(CHECKSUM_OFFSET) == checksum(buffer, count)
+                        && buffer.getLong(SEQUENCE_OFFSET) == sequence) {
+                    return state;
+                }
+            }
+            return STATE_UNKNOWN;
+        }
+
+        public boolean isPurchased(String sku) {
+            return getState(sku) == STATE_PURCHASED;
+        }
+
+        /**
+         * @return a consistent copy of all the entitlements, null if there is none
+         */
+        public EntitlementSnapshot read() {
+            ByteBuffer buffer = map();
+            if (buffer == null) {
+                return null;
+            }
+            for (int attempt = 0; attempt < MAX_READ_ATTEMPTS; attempt++) {
+                long sequence = buffer.getLong(SEQUENCE_OFFSET);
+                if ((sequence & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                int count = buffer.getInt(COUNT_OFFSET);
+                if (count < 0 || count > MAX_ENTRIES) {
+                    continue;
+                }
+                List<Entitlement> entitlements = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    int offset = HEADER_SIZE + i * ENTRY_SIZE;
+                    int length = Math.min(Math.max(buffer.getShort(offset + SKU_LENGTH_OFFSET), 0), MAX_SKU_LENGTH);
+                    char[] sku = new char[length];
+                    for (int c = 0; c < length; c++) {
+                        sku[c] = (char) buffer.get(offset + SKU_OFFSET + c);
+                    }
+                    entitlements.add(new Entitlement(new String(sku), buffer.get(offset + STATE_OFFSET),
+                            buffer.get(offset + ACKNOWLEDGED_OFFSET) != 0,
+                            buffer.getLong(offset + PURCHASE_TIME_OFFSET)));
+                }
+                if (buffer.getLong(CHECKSUM_OFFSET) == checksum(buffer, count)
+                        && buffer.getLong(SEQUENCE_OFFSET) == sequence) {
+                    return new EntitlementSnapshot(sequence / 2, Collections.unmodifiableList(entitlements));
+                }
+            }
+            return null;
+        }
+
+        private ByteBuffer map() {
+            ByteBuffer buffer = mBuffer;
+            if (buffer != null) {
+                return buffer;
+            }
+            synchronized (this) {
+                if (mBuffer == null && mFile.length() >= FILE_SIZE) {
+                    try {
+                        RandomAccessFile file = new RandomAccessFile(mFile, "r");
+                        try {
+                            MappedByteBuffer mapped = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE);
+                            if (mapped.getInt(MAGIC_OFFSET) == MAGIC && mapped.getInt(FORMAT_OFFSET) == FORMAT_VERSION) {
+                                mBuffer = mapped;
+                            }
+                        } finally {
+                            file.close();
+                        }
+                    } catch (IOException e) {
+                        Log.w(TAG, "Cannot map " + mFile, e);
+                    }
+                }
+                return mBuffer;
+            }
+        }
+
+        private static boolean skuEquals(ByteBuffer buffer, int offset, String sku) {
+            int length = sku.length();
+            if (buffer.getShort(offset + SKU_LENGTH_OFFSET) != length) {
+                return false;
+            }
+            for (int c = 0; c < length; c++) {
+                if (buffer.get(offset + SKU_OFFSET + c) != (byte) sku.charAt(c)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static int toState(int purchaseState) {
+        switch (purchaseState) {
+            case Purchase.PurchaseState.PURCHASED:
+                return STATE_PURCHASED;
+            case Purchase.PurchaseState.PENDING:
+                return STATE_PENDING;
+            default:
+                return STATE_NONE;
+        }
+    }
+
+    // A completed purchase wins over a pending one of the same SKU
+    private static int mergeState(int state, int entryState) {
+        if (state == STATE_PURCHASED || entryState == STATE_PURCHASED) {
+            return STATE_PURCHASED;
+        }
+        return entryState == STATE_PENDING ? STATE_PENDING : state;
+    }
+
+    private static long hash(String sku) {
+        return TokenSet.hash(sku);
+    }
+
+    // FNV-1a over the count and the 64-bit words of the entries
+    private static long checksum(ByteBuffer buffer, int count) {
+        long checksum = 0xcbf29ce484222325L ^ count;
+        int end = HEADER_SIZE + count * ENTRY_SIZE;
+        for (int offset = HEADER_SIZE; offset < end; offset += 8) {
+            checksum ^= buffer.getLong(offset);
+            checksum *= 0x100000001b3L;
+        }
+        return checksum;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Flags billing work that blocks the main thread, for debug and staging builds.
+ * <p>
+ * Only the code wrapped in {@link #begin(String)} and {@link #end()} and run on the main thread
+ * is timed. With {@link BillingExecutors#createDefault()} that is the billing callbacks
+ * BillingManager and PurchaseUpdateStream deliver to the app, i.e. the app's own listeners. The
+ * state work BillingManager runs inline and the synchronous purchases query are wrapped too, but
+ * only run on the main thread with executors passed in that use it.
+ * <p>
+ * The last {@link #WINDOW} durations are kept for a rolling histogram, and any call over the
+ * budget is logged with the main thread's stack. The stack is sampled by a watcher thread while
+ * the call is still running, so it shows where the call was stuck rather than where it ended.
+ * The watcher only wakes up while a call is running, once it is over budget.
+ * <p>
+ * Nothing is timed until {@link #install(long)} is called, and begin/end never allocate.
+ */
+public final class MainThreadWatchdog {
+    private static final String TAG = "MainThreadWatchdog";
+
+    // Calls kept for the histogram
+    static final int WINDOW = 128;
+    // Upper bounds of the histogram buckets in milliseconds, the last bucket takes the rest
+    static final long[] BUCKET_LIMITS_MS = {1, 2, 4, 8, 16, 32, 64, 128};
+    // Violations kept for getViolations()
+    static final int MAX_VIOLATIONS = 8;
+
+    /**
+     * A call that went over the budget
+     */
+    public static final class Violation {
+        private final String mName;
+        private final long mDurationMs;
+        private final StackTraceElement[] mStack;
+        private final boolean mSampled;
+
+        Violation(String name, long durationMs, StackTraceElement[] stack, boolean sampled) {
+            mName = name;
+            mDurationMs = durationMs;
+            mStack = stack;
+            mSampled = sampled;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getDurationMs() {
+            return mDurationMs;
+        }
+
+        /**
+         * @return the main thread's stack while the call was over budget, or when it ended if the
+         * watcher did not get to sample it
+         */
+        public StackTraceElement[] getStack() {
+            return mStack;
+        }
+
+        public boolean isSampled() {
+            return mSampled;
+        }
+    }
+
+    private static volatile MainThreadWatchdog sInstance;
+
+    private final Thread mMainThread;
+    private final long mBudgetNanos;
+    private final Thread mWatcher;
+    // Main thread only: nested calls are timed as part of the outermost one
+    private int mDepth;
+    // Written by the main thread, read by the watcher
+    private volatile String mName;
+    private volatile long mStartNanos;
+    private volatile long mCallId;
+    // Written by the watcher for mCallId, read by the main thread
+    private volatile long mSampledCallId;
+    private volatile StackTraceElement[] mSampledStack;
+    // Guarded by this
+    private final long[] mDurations = new long[WINDOW];
+    private int mHead;
+    private int mCount;
+    private final ArrayDeque<Violation> mViolations = new ArrayDeque<>();
+
+    private MainThreadWatchdog(Thread mainThread, long budgetMs) {
+        mMainThread = mainThread;
+        mBudgetNanos = budgetMs * 1000000L;
+        mWatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "BillingWatchdog");
+        mWatcher.setDaemon(true);
+    }
+
+    /**
+     * Starts timing the billing calls made on the main thread, or changes the budget
+     *
+     * @param budgetMs longest a call may block the main thread, 0 or less leaves the watchdog off
+     */
+    public static synchronized void install(long budgetMs) {
+        install(Looper.getMainLooper().getThread(), budgetMs);
+    }
+
+    static synchronized void install(Thread mainThread, long budgetMs) {
+        // Installed again by every new activity, the histogram is kept
+        if (sInstance != null && sInstance.mMainThread == mainThread
+                && sInstance.mBudgetNanos == budgetMs * 1000000L) {
+            return;
+        }
+        uninstall();
+        if (budgetMs <= 0) {
+            return;
+        }
+        MainThreadWatchdog watchdog = new MainThreadWatchdog(mainThread, budgetMs);
+        watchdog.mWatcher.start();
+        sInstance = watchdog;
+        Log.i(TAG, "Billing calls on the main thread budgeted to " + budgetMs + " ms");
+    }
+
+    static synchronized void uninstall() {
+        if (sInstance != null) {
+            sInstance.mWatcher.interrupt();
+            sInstance = null;
+        }
+    }
+
+    /**
+     * Starts timing a call if made on the main thread, {@link #end()} must follow in a finally
+     * block
+     */
+    public static void begin(String name) {
+        MainThreadWatchdog watchdog = sInstance;
+        if (watchdog != null && Thread.currentThread() == watchdog.mMainThread) {
+            watchdog.onBegin(name);
+        }
+    }
+
+    public static void end() {
+        MainThreadWatchdog watchdog = sInstance;
+        if (watchdog != null && Thread.currentThread() == watchdog.mMainThread) {
+            watchdog.onEnd();
+        }
+    }
+
+    /**
+     * @return count of the last {@link #WINDOW} calls in each bucket of
+     * {@link #BUCKET_LIMITS_MS}, plus one bucket for the longer ones; empty if not installed
+     */
+    public static int[] getHistogram() {
+        MainThreadWatchdog watchdog = sInstance;
+        if (watchdog == null) {
+            return new int[0];
+        }
+        return watchdog.histogram();
+    }
+
+    /**
+     * @return the last {@link #MAX_VIOLATIONS} calls over the budget, oldest first
+     */
+    public static List<Violation> getViolations() {
+        MainThreadWatchdog watchdog = sInstance;
+        if (watchdog == null) {
+            return new ArrayList<>();
+        }
+        synchronized (watchdog) {
+            return new ArrayList<>(watchdog.mViolations);
+        }
+    }
+
+    /**
+     * @return the histogram as text, for bug reports
+     */
+    public static String dump() {
+        MainThreadWatchdog watchdog = sInstance;
+        return watchdog == null ? "MainThreadWatchdog not installed" : watchdog.formatHistogram();
+    }
+
+    private void onBegin(String name) {
+        if (mDepth++ > 0) {
+            return;
+        }
+        mName = name;
+        mCallId++;
+        mStartNanos = System.nanoTime();
+        // Arms the watcher, which is parked between calls
+        LockSupport.unpark(mWatcher);
+    }
+
+    private void onEnd() {
+        // Not begun while installed
+        if (mDepth == 0 || --mDepth > 0) {
+            return;
+        }
+        long duration = System.nanoTime() - mStartNanos;
+        mStartNanos = 0;
+        synchronized (this) {
+            mDurations[mHead] = duration;
+            mHead = (mHead + 1) % WINDOW;
+            mCount = Math.min(mCount + 1, WINDOW);
+        }
+        if (duration > mBudgetNanos) {
+            onViolation(duration);
+        }
+    }
+
+    private void onViolation(long durationNanos) {
+        StackTraceElement[] stack = mSampledCallId == mCallId ? mSampledStack : null;
+        boolean sampled = stack != null;
+        if (!sampled) {
+            stack = Thread.currentThread().getStackTrace();
+        }
+        Violation violation = new Violation(mName, durationNanos / 1000000L, stack, sampled);
+        synchronized (this) {
+            if (mViolations.size() == MAX_VIOLATIONS) {
+                mViolations.removeFirst();
+            }
+            mViolations.addLast(violation);
+        }
+        StringBuilder message = new StringBuilder()
+                .append(violation.getName()).append(" blocked the main thread for ")
+                .append(violation.getDurationMs()).append(" ms, budget ")
+                .append(mBudgetNanos / 1000000L).append(" ms\n")
+                .append(sampled ? "Stack while over budget:" : "Stack at the end of the call:");
+        for (StackTraceElement element : stack) {
+            message.append("\n\tat ").append(element);
+        }
+        message.append("\nLast ").append(WINDOW).append(" calls: ").append(formatHistogram());
+        Log.w(TAG, message.toString());
+    }
+
+    private synchronized int[] histogram() {
+        int[] histogram = new int[BUCKET_LIMITS_MS.length + 1];
+        for (int i = 0; i < mCount; i++) {
+            histogram[bucket(mDurations[i])]++;
+        }
+        return histogram;
+    }
+
+    private String formatHistogram() {
+        int[] histogram = histogram();
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < histogram.length; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(i < BUCKET_LIMITS_MS.length ? "<" + BUCKET_LIMITS_MS[i] : ">=" + BUCKET_LIMITS_MS[i - 1])
+                    .append(" ms: ").append(histogram[i]);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Watcher thread: samples the main thread's stack once per call that goes over budget. Parked
+     * until a call begins, then until the call would be over budget.
+     */
+    private void watch() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long callId = mCallId;
+            long start = mStartNanos;
+            if (start == 0 || mSampledCallId == callId) {
+                // Until the next call, onBegin() unparks
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = start + mBudgetNanos - System.nanoTime();
+            if (remaining >= 0) {
+                // Woken up early by the next call if this one ends in time
+                LockSupport.parkNanos(this, remaining + 1);
+                continue;
+            }
+            StackTraceElement[] stack = mMainThread.getStackTrace();
+            // Only if the same call is still running
+            if (mCallId == callId && mStartNanos == start) {
+                mSampledStack = stack;
+                mSampledCallId = callId;
+            }
+        }
+    }
+
+    private static int bucket(long durationNanos) {
+        long durationMs = durationNanos / 1000000L;
+        for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+            if (durationMs < BUCKET_LIMITS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_MS.length;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.Purchase;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Keeps track of the purchases waiting on a delayed payment method and polls their state
+ * while the app is in the foreground.
+ * <p>
+ * The poll interval starts short, so a payment completed right after the flow is picked up
+ * within seconds, and doubles every time a poll finds nothing new, up to
+ * {@link #MAX_POLL_DELAY_MS}. Tracking a new pending purchase resets it.
+ */
+public class PendingPurchaseTracker {
+    private static final String TAG = "PendingPurchaseTracker";
+
+    static final long INITIAL_POLL_DELAY_MS = 2 * 1000L;
+    static final long MAX_POLL_DELAY_MS = 60 * 1000L;
+
+    /**
+     * Re-queries the purchases of the given types, results are expected back through
+     * {@link #onQueryResult(String, List)}
+     */
+    public interface Poller {
+        void pollPurchases(Set<String> skuTypes);
+    }
+
+    private final BillingExecutors.SerialExecutor mExecutor;
+    private final Poller mPoller;
+    // Pending purchase token -> SKU type
+    private final HashMap<String, String> mPending = new HashMap<>();
+    private long mPollDelay = INITIAL_POLL_DELAY_MS;
+    private boolean mForeground;
+    private boolean mScheduled;
+    private boolean mChangedSinceLastPoll;
+
+    private final Runnable mPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduled = false;
+            if (mPending.isEmpty() || !mForeground) {
+                return;
+            }
+            if (!mChangedSinceLastPoll) {
+                mPollDelay = Math.min(mPollDelay * 2, MAX_POLL_DELAY_MS);
+            }
+            mChangedSinceLastPoll = false;
+            Log.d(TAG, "polling " + mPending.size() + " pending purchase(s)");
+            mPoller.pollPurchases(new HashSet<>(mPending.values()));
+            schedule();
+        }
+    };
+
+    public PendingPurchaseTracker(BillingExecutors.SerialExecutor executor, Poller poller) {
+        mExecutor = executor;
+        mPoller = poller;
+    }
+
+    /**
+     * Updates the tracked set from purchases of the given type, starts tracking the pending ones
+     * and stops tracking the ones that have left the pending state
+     */
+    public void onPurchases(@BillingClient.SkuType String skuType, List<Purchase> purchases) {
+        if (purchases == null) {
+            return;
+        }
+        for (int i = 0, size = purchases.size(); i < size; i++) {
+            track(skuType, purchases.get(i));
+        }
+        schedule();
+    }
+
+    /**
+     * {@link #onPurchases(String, List)} for a single purchase, allocates nothing unless the
+     * purchase enters or leaves the pending state
+     */
+    public void onPurchase(@BillingClient.SkuType String skuType, Purchase purchase) {
+        track(skuType, purchase);
+        schedule();
+    }
+
+    private void track(String skuType, Purchase purchase) {
+        String token = purchase.getPurchaseToken();
+        if (purchase.getPurchaseState() == Purchase.PurchaseState.PENDING) {
+            if (mPending.put(token, skuType) == null) {
+                Log.d(TAG, "tracking pending purchase of " + purchase.getSku());
+                mPollDelay = INITIAL_POLL_DELAY_MS;
+                mChangedSinceLastPoll = true;
+            }
+        } else if (mPending.remove(token) != null) {
+            Log.d(TAG, "purchase of " + purchase.getSku() + " left the pending state");
+            mChangedSinceLastPoll = true;
+        }
+    }
+
+    /**
+     * Handles the full list of owned purchases of a type, pending purchases missing from it were
+     * cancelled
+     */
+    public void onQueryResult(@BillingClient.SkuType String skuType, List<Purchase> purchases) {
+        HashSet<String> owned = new HashSet<>();
+        if (purchases != null) {
+            for (Purchase purchase : purchases) {
+                owned.add(purchase.getPurchaseToken());
+            }
+        }
+        for (String token : new HashSet<>(mPending.keySet())) {
+            if (skuType.equals(mPending.get(token)) && !owned.contains(token)) {
+                Log.d(TAG, "pending purchase was cancelled");
+                mPending.remove(token);
+                mChangedSinceLastPoll = true;
+            }
+        }
+        onPurchases(skuType, purchases);
+    }
+
+    public boolean hasPendingPurchases() {
+        return !mPending.isEmpty();
+    }
+
+    public void onForeground() {
+        mForeground = true;
+        // Coming back from the payment app is the most likely moment for a change
+        mPollDelay = INITIAL_POLL_DELAY_MS;
+        schedule();
+    }
+
+    public void onBackground() {
+        mForeground = false;
+        mScheduled = false;
+        mExecutor.cancel(mPollRunnable);
+    }
+
+    private void schedule() {
+        if (mScheduled || !mForeground || mPending.isEmpty()) {
+            return;
+        }
+        mScheduled = true;
+        mExecutor.executeDelayed(mPollRunnable, mPollDelay);
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Local copy of the purchase history returned by Google Play, for both INAPP and SUBS.
+ * <p>
+ * Records are persisted in SharedPreferences (one entry per purchase token) and indexed in
+ * memory by token, by SKU and by purchase time, so support screens and restore flows can read
+ * the history without a round trip to Play. Each sync only writes the records that are new or
+ * changed since the previous one.
+ * <p>
+ * Writes come from BillingManager's state executor, reads may come from any thread. The records
+ * are read from disk on the first access, BillingManager has them preloaded on its background
+ * executor so that this first access is not a read on the main thread.
+ */
+public class PurchaseHistoryStore {
+    private static final String TAG = "PurchaseHistoryStore";
+    private static final String PREFS_NAME = "purchase_history";
+    private static final String KEY_RECORD_PREFIX = "record_";
+    private static final String KEY_LAST_SYNC_PREFIX = "last_sync_";
+    private static final String FIELD_SEPARATOR = "\n";
+
+    // Play does not offer a "since" cursor, so avoid re-fetching more often than this
+    static final long MIN_SYNC_INTERVAL_MS = 15 * 60 * 1000L;
+
+    /**
+     * Listener notified when a history sync finishes
+     */
+    public interface SyncListener {
+        /**
+         * @param billingResult result of the last Play query of the sync
+         * @param newRecords    number of records written to the store by this sync
+         */
+        void onHistorySynced(BillingResult billingResult, int newRecords);
+    }
+
+    /**
+     * A purchase history record as stored locally
+     */
+    public static final class Entry {
+        private final String skuType;
+        private final PurchaseHistoryRecord record;
+
+        Entry(String skuType, PurchaseHistoryRecord record) {
+            this.skuType = skuType;
+            this.record = record;
+        }
+
+        public String getSkuType() {
+            return skuType;
+        }
+
+        public String getSku() {
+            return record.getSku();
+        }
+
+        public String getPurchaseToken() {
+            return record.getPurchaseToken();
+        }
+
+        public long getPurchaseTime() {
+            return record.getPurchaseTime();
+        }
+
+        public PurchaseHistoryRecord getRecord() {
+            return record;
+        }
+    }
+
+    private final SharedPreferences mPrefs;
+    private final HashMap<String, Entry> mByToken = new HashMap<>();
+    private final HashMap<String, List<Entry>> mBySku = new HashMap<>();
+    // Sorted by ascending purchase time
+    private final ArrayList<Entry> mByTime = new ArrayList<>();
+    private boolean mLoaded;
+
+    public PurchaseHistoryStore(Context context) {
+        mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Reads the records from disk on the given executor, unless they were already
+     */
+    public void preload(Executor executor) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PurchaseHistoryStore.this) {
+                    ensureLoaded();
+                }
+            }
+        });
+    }
+
+    /**
+     * Whether the history of the given type has not been synced recently enough
+     */
+    public boolean isSyncDue(@BillingClient.SkuType String skuType, long nowMillis) {
+        long lastSync = mPrefs.getLong(KEY_LAST_SYNC_PREFIX + skuType, 0L);
+        return nowMillis - lastSync >= MIN_SYNC_INTERVAL_MS;
+    }
+
+    /**
+     * Merges the records returned by Play into the store and persists only the ones that are new
+     * or have changed.
+     *
+     * @return number of records written
+     */
+    public synchronized int applyHistory(@BillingClient.SkuType String skuType, List<PurchaseHistoryRecord> records,
+                            long nowMillis) {
+        ensureLoaded();
+        SharedPreferences.Editor editor = mPrefs.edit();
+        int written = 0;
+        if (records != null) {
+            for (int i = 0; i < records.size(); i++) {
+                PurchaseHistoryRecord record = records.get(i);
+                Entry known = mByToken.get(record.getPurchaseToken());
+                if (known != null && known.record.getOriginalJson().equals(record.getOriginalJson())) {
+                    continue;
+                }
+                if (known != null) {
+                    unindex(known);
+                }
+                index(new Entry(skuType, record));
+                editor.putString(KEY_RECORD_PREFIX + record.getPurchaseToken(),
+                        skuType + FIELD_SEPARATOR + record.getSignature()
+                                + FIELD_SEPARATOR + record.getOriginalJson());
+                written++;
+            }
+        }
+        editor.putLong(KEY_LAST_SYNC_PREFIX + skuType, nowMillis);
+        editor.apply();
+        Log.d(TAG, "applyHistory: " + skuType + " wrote " + written + " record(s)");
+        return written;
+    }
+
+    public synchronized Entry getByToken(String purchaseToken) {
+        ensureLoaded();
+        return mByToken.get(purchaseToken);
+    }
+
+    /**
+     * @return all the records of a SKU, oldest first
+     */
+    public synchronized List<Entry> getBySku(String sku) {
+        ensureLoaded();
+        List<Entry> entries = mBySku.get(sku);
+        return entries == null ? Collections.<Entry>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /**
+     * @return the records purchased in [fromMillis, toMillis), oldest first
+     */
+    public synchronized List<Entry> getBetween(long fromMillis, long toMillis) {
+        ensureLoaded();
+        int from = lowerBound(fromMillis);
+        int to = lowerBound(toMillis);
+        return from >= to ? Collections.<Entry>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(mByTime.subList(from, to)));
+    }
+
+    public synchronized int size() {
+        ensureLoaded();
+        return mByTime.size();
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        for (Map.Entry<String, ?> pref : mPrefs.getAll().entrySet()) {
+            if (!pref.getKey().startsWith(KEY_RECORD_PREFIX) || !(pref.getValue() instanceof String)) {
+                continue;
+            }
+            String[] fields = ((String) pref.getValue()).split(FIELD_SEPARATOR, 3);
+            if (fields.length != 3) {
+                continue;
+            }
+            try {
+                index(new Entry(fields[0], new PurchaseHistoryRecord(fields[2], fields[1])));
+            } catch (JSONException e) {
+                Log.w(TAG, "ensureLoaded: dropping unreadable record " + pref.getKey(), e);
+            }
+        }
+        Log.d(TAG, "ensureLoaded: " + mByTime.size() + " record(s)");
+    }
+
+    private void index(Entry entry) {
+        mByToken.put(entry.getPurchaseToken(), entry);
+        List<Entry> bySku = mBySku.get(entry.getSku());
+        if (bySku == null) {
+            bySku = new ArrayList<>();
+            mBySku.put(entry.getSku(), bySku);
+        }
+        bySku.add(insertionPoint(bySku, entry.getPurchaseTime()), entry);
+        mByTime.add(insertionPoint(mByTime, entry.getPurchaseTime()), entry);
+    }
+
+    private void unindex(Entry entry) {
+        mByToken.remove(entry.getPurchaseToken());
+        List<Entry> bySku = mBySku.get(entry.getSku());
+        if (bySku != null) {
+            bySku.remove(entry);
+        }
+        mByTime.remove(entry);
+    }
+
+    /**
+     * Index of the first record purchased at or after the given time
+     */
+    private int lowerBound(long timeMillis) {
+        int low = 0;
+        int high = mByTime.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mByTime.get(mid).getPurchaseTime() < timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Index after the last record purchased at or before the given time, keeping ties in
+     * insertion order
+     */
+    private static int insertionPoint(List<Entry> entries, long timeMillis) {
+        int low = 0;
+        int high = entries.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid).getPurchaseTime() <= timeMillis) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reconciles what the app has granted with what Play says the user owns.
+ * <p>
+ * The app records every purchase it grants in a ledger of token hashes, see {@link TokenSet}.
+ * Each pass diffs the ledger against the owned purchases reported by Play and lists, in a
+ * single {@link Report}:
+ * <ul>
+ * <li>missing grants: completed purchases the app never granted, e.g. bought while it was not
+ * running or granted by a process that died before saving</li>
+ * <li>revocations: grants whose purchase Play no longer lists as owned, refunded, revoked or
+ * expired</li>
+ * <li>unacknowledged purchases the app has no acknowledgement in flight for</li>
+ * </ul>
+ * The app applies the grants and revocations of a report in one go, then {@link #commit(Report)}
+ * records them. Each pass only keeps the hashes of the owned purchases besides the ledger, and
+ * reports at most {@link #MAX_FIXES_PER_PASS} fixes of each kind, the rest are left for the next
+ * pass.
+ * <p>
+ * BillingManager reconciles on its state executor and commits right after the app applied a
+ * report, on the background executor since it writes the ledger file.
+ */
+public class PurchaseReconciler {
+    private static final String TAG = "PurchaseReconciler";
+
+    static final String FILE_NAME = "purchase_grants";
+    private static final int FORMAT_VERSION = 1;
+
+    // Fixes of each kind reported per pass
+    static final int MAX_FIXES_PER_PASS = 50;
+
+    /**
+     * Grants and revokes what Play reports, implemented by the app
+     */
+    public interface GrantHandler {
+        /**
+         * Applies all the grants and revocations of the report, saving them at once. Called on the
+         * callback executor. Once it returns, they are recorded and not reported again.
+         */
+        void onReconciled(Report report);
+    }
+
+    /**
+     * Fixes found by a reconciliation pass
+     */
+    public static final class Report {
+        private final List<Purchase> mMissingGrants;
+        private final List<String> mRevokedSkus;
+        // Ledger entries of the revocations, sorted
+        private final long[] mRevokedHashes;
+        private final List<Purchase> mUnacknowledged;
+        private final boolean mHasMore;
+
+        Report(List<Purchase> missingGrants, List<String> revokedSkus, long[] revokedHashes,
+               List<Purchase> unacknowledged, boolean hasMore) {
+            mMissingGrants = Collections.unmodifiableList(missingGrants);
+            mRevokedSkus = Collections.unmodifiableList(revokedSkus);
+            mRevokedHashes = revokedHashes;
+            mUnacknowledged = Collections.unmodifiableList(unacknowledged);
+            mHasMore = hasMore;
+        }
+
+        /**
+         * @return completed purchases to grant
+         */
+        public List<Purchase> getMissingGrants() {
+            return mMissingGrants;
+        }
+
+        /**
+         * @return SKU of each grant to take back, once per purchase
+         */
+        public List<String> getRevokedSkus() {
+            return mRevokedSkus;
+        }
+
+        /**
+         * @return completed purchases to acknowledge, BillingManager takes care of them
+         */
+        public List<Purchase> getUnacknowledged() {
+            return mUnacknowledged;
+        }
+
+        /**
+         * @return grants minus revocations of the SKU
+         */
+        public int getGrantDelta(String sku) {
+            int delta = 0;
+            for (int i = 0; i < mMissingGrants.size(); i++) {
+                if (sku.equals(mMissingGrants.get(i).getSku())) {
+                    delta++;
+                }
+            }
+            for (int i = 0; i < mRevokedSkus.size(); i++) {
+                if (sku.equals(mRevokedSkus.get(i))) {
+                    delta--;
+                }
+            }
+            return delta;
+        }
+
+        /**
+         * @return whether some fixes were left for the next pass
+         */
+        public boolean hasMore() {
+            return mHasMore;
+        }
+
+        /**
+         * @return whether there are grants or revocations to apply
+         */
+        public boolean hasGrantChanges() {
+            return !mMissingGrants.isEmpty() || !mRevokedSkus.isEmpty();
+        }
+    }
+
+    // Null keeps the ledger in memory only
+    private final File mFile;
+    // Ledger: hashes of the granted tokens, sorted, and the SKU of each one
+    private long[] mGranted = new long[0];
+    private String[] mGrantedSkus = new String[0];
+    private int mGrantedCount;
+    private boolean mLoaded;
+
+    PurchaseReconciler(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return a reconciler keeping its ledger in the files directory of the app
+     */
+    static PurchaseReconciler create(Context context) {
+        File dir = context.getFilesDir();
+        if (dir == null) {
+            Log.w(TAG, "No files directory, grants are only recorded in memory");
+            return new PurchaseReconciler(null);
+        }
+        return new PurchaseReconciler(new File(dir, FILE_NAME));
+    }
+
+    /**
+     * Diffs the ledger against the owned purchases of all SKU types, as last reported by Play.
+     * The list must be complete: a grant missing from it is reported as revoked.
+     *
+     * @param acknowledged tokens acknowledged, or being acknowledged, since Play listed them
+     */
+    synchronized Report reconcile(List<Purchase> owned, TokenSet acknowledged) {
+        ensureLoaded();
+        List<Purchase> missingGrants = new ArrayList<>();
+        List<Purchase> unacknowledged = new ArrayList<>();
+        boolean hasMore = false;
+        TokenSet.Builder ownedBuilder = new TokenSet.Builder(owned.size());
+        for (int i = 0; i < owned.size(); i++) {
+            Purchase purchase = owned.get(i);
+            // Pending purchases grant nothing until the payment completes
+            if (purchase.getPurchaseState() != Purchase.PurchaseState.PURCHASED) {
+                continue;
+            }
+            long hash = TokenSet.hash(purchase.getPurchaseToken());
+            ownedBuilder.addHash(hash);
+            if (!isGranted(hash)) {
+                hasMore |= !addCapped(missingGrants, purchase);
+            }
+            if (!purchase.isAcknowledged() && !acknowledged.containsHash(hash)) {
+                hasMore |= !addCapped(unacknowledged, purchase);
+            }
+        }
+
+        // Both sides are sorted, a single merge finds the grants Play no longer lists
+        TokenSet ownedSet = ownedBuilder.build();
+        List<String> revokedSkus = new ArrayList<>();
+        long[] revokedHashes = new long[Math.min(mGrantedCount, MAX_FIXES_PER_PASS)];
+        int j = 0;
+        for (int i = 0; i < mGrantedCount; i++) {
+            long granted = mGranted[i];
+            while (j < ownedSet.size() && ownedSet.hashAt(j) < granted) {
+                j++;
+            }
+            if (j < ownedSet.size() && ownedSet.hashAt(j) == granted) {
+                continue;
+            }
+            if (revokedSkus.size() == MAX_FIXES_PER_PASS) {
+                hasMore = true;
+                break;
+            }
+            revokedHashes[revokedSkus.size()] = granted;
+            revokedSkus.add(mGrantedSkus[i]);
+        }
+
+        Report report = new Report(missingGrants, revokedSkus,
+                Arrays.copyOf(revokedHashes, revokedSkus.size()), unacknowledged, hasMore);
+        Log.d(TAG, "reconcile: " + owned.size() + " owned, " + mGrantedCount + " granted, "
+                + missingGrants.size() + " to grant, " + revokedSkus.size() + " to revoke, "
+                + unacknowledged.size() + " to acknowledge" + (hasMore ? ", more left" : ""));
+        return report;
+    }
+
+    /**
+     * Records the grants and revocations of a report once the app has applied them. The ledger
+     * is a few bytes per grant and only written when grants change.
+     */
+    synchronized void commit(Report report) {
+        if (!report.hasGrantChanges()) {
+            return;
+        }
+        ensureLoaded();
+        // Revocations first, they are sorted like the ledger
+        int count = 0;
+        int r = 0;
+        long[] revoked = report.mRevokedHashes;
+        for (int i = 0; i < mGrantedCount; i++) {
+            while (r < revoked.length && revoked[r] < mGranted[i]) {
+                r++;
+            }
+            if (r < revoked.length && revoked[r] == mGranted[i]) {
+                continue;
+            }
+            mGranted[count] = mGranted[i];
+            mGrantedSkus[count] = mGrantedSkus[i];
+            count++;
+        }
+        Arrays.fill(mGrantedSkus, count, mGrantedCount, null);
+        mGrantedCount = count;
+
+        List<Purchase> grants = report.getMissingGrants();
+        for (int i = 0; i < grants.size(); i++) {
+            insert(TokenSet.hash(grants.get(i).getPurchaseToken()), grants.get(i).getSku());
+        }
+        save();
+    }
+
+    /**
+     * @return number of purchases recorded as granted
+     */
+    synchronized int getGrantCount() {
+        ensureLoaded();
+        return mGrantedCount;
+    }
+
+    private boolean isGranted(long hash) {
+        return Arrays.binarySearch(mGranted, 0, mGrantedCount, hash) >= 0;
+    }
+
+    private void insert(long hash, String sku) {
+        int index = Arrays.binarySearch(mGranted, 0, mGrantedCount, hash);
+        if (index >= 0) {
+            return;
+        }
+        index = -index - 1;
+        if (mGrantedCount == mGranted.length) {
+            int capacity = Math.max(mGrantedCount * 2, 8);
+            mGranted = Arrays.copyOf(mGranted, capacity);
+            mGrantedSkus = Arrays.copyOf(mGrantedSkus, capacity);
+        }
+        System.arraycopy(mGranted, index, mGranted, index + 1, mGrantedCount - index);
+        System.arraycopy(mGrantedSkus, index, mGrantedSkus, index + 1, mGrantedCount - index);
+        mGranted[index] = hash;
+        // A handful of distinct SKUs are shared by all the entries
+        mGrantedSkus[index] = sku.intern();
+        mGrantedCount++;
+    }
+
+    private static boolean addCapped(List<Purchase> fixes, Purchase purchase) {
+        if (fixes.size() == MAX_FIXES_PER_PASS) {
+            return false;
+        }
+        fixes.add(purchase);
+        return true;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+        if (mFile == null) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    Log.w(TAG, "ensureLoaded: unknown ledger format, starting over");
+                    return;
+                }
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    long hash = in.readLong();
+                    insert(hash, in.readUTF());
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            Log.d(TAG, "ensureLoaded: no grants yet");
+        } catch (IOException e) {
+            Log.w(TAG, "ensureLoaded: unreadable ledger, kept " + mGrantedCount + " grant(s)", e);
+        }
+        Log.d(TAG, "ensureLoaded: " + mGrantedCount + " grant(s)");
+    }
+
+    /**
+     * Writes the whole ledger to a temporary file and renames it over the previous one, so a
+     * crash never leaves a partial ledger behind
+     */
+    private void save() {
+        if (mFile == null) {
+            return;
+        }
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(mGrantedCount);
+                for (int i = 0; i < mGrantedCount; i++) {
+                    out.writeLong(mGranted[i]);
+                    out.writeUTF(mGrantedSkus[i]);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot rename " + tmp + " to " + mFile);
+            }
+        } catch (IOException e) {
+            // Kept in memory, written again with the next commit
+            Log.w(TAG, "save: cannot write the ledger", e);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Fans purchase changes out to any number of subscribers.
+ * <p>
+ * Every subscriber is called on its own executor and has its own bounded buffer. Updates
+ * published while a delivery is still queued or running are conflated: a subscriber with the
+ * default buffer of one only ever receives the latest state, so a burst of updates costs it a
+ * single callback. A subscriber with a larger buffer receives individual updates until it falls
+ * that far behind, after which the oldest ones are dropped and counted in
+ * {@link PurchaseUpdate#getSkippedUpdates()}. Every update carries the full list of owned
+ * purchases, so dropping older ones never loses state.
+ */
+public class PurchaseUpdateStream {
+    private static final String TAG = "PurchaseUpdateStream";
+
+    /**
+     * Receives purchase changes on the executor it was subscribed with
+     */
+    public interface Subscriber {
+        void onPurchasesUpdated(PurchaseUpdate update);
+    }
+
+    /**
+     * A change to the owned purchases
+     */
+    public static final class PurchaseUpdate {
+        private final List<Purchase> mPurchases;
+        private final List<Purchase> mUpdatedPurchases;
+        private final int mSkippedUpdates;
+
+        PurchaseUpdate(List<Purchase> purchases, List<Purchase> updatedPurchases, int skippedUpdates) {
+            mPurchases = purchases;
+            mUpdatedPurchases = updatedPurchases;
+            mSkippedUpdates = skippedUpdates;
+        }
+
+        /**
+         * @return all the purchases owned after this update
+         */
+        public List<Purchase> getPurchases() {
+            return mPurchases;
+        }
+
+        /**
+         * @return the purchases reported by Play in this update, not including the ones of skipped
+         * updates
+         */
+        public List<Purchase> getUpdatedPurchases() {
+            return mUpdatedPurchases;
+        }
+
+        /**
+         * @return how many earlier updates were conflated into this one
+         */
+        public int getSkippedUpdates() {
+            return mSkippedUpdates;
+        }
+    }
+
+    /**
+     * Handle returned by {@link #subscribe}
+     */
+    public final class Subscription implements Runnable {
+        private final Executor mExecutor;
+        private final Subscriber mSubscriber;
+        private final int mCapacity;
+        // Guarded by this
+        private final ArrayDeque<PurchaseUpdate> mBuffer = new ArrayDeque<>();
+        private int mSkipped;
+        private boolean mScheduled;
+        private volatile boolean mActive = true;
+
+        Subscription(Executor executor, Subscriber subscriber, int capacity) {
+            mExecutor = executor;
+            mSubscriber = subscriber;
+            mCapacity = capacity;
+        }
+
+        /**
+         * Stops the deliveries, including the ones already buffered
+         */
+        public void unsubscribe() {
+            mActive = false;
+            mSubscriptions.remove(this);
+            synchronized (this) {
+                mBuffer.clear();
+            }
+        }
+
+        void offer(PurchaseUpdate update) {
+            synchronized (this) {
+                if (mBuffer.size() == mCapacity) {
+                    mBuffer.removeFirst();
+                    mSkipped++;
+                }
+                mBuffer.addLast(update);
+                if (mScheduled) {
+                    return;
+                }
+                mScheduled = true;
+            }
+            mExecutor.execute(this);
+        }
+
+        // Drains the buffer on the subscriber's executor
+        @Override
+        public void run() {
+            while (mActive) {
+                PurchaseUpdate update;
+                int skipped;
+                synchronized (this) {
+                    update = mBuffer.pollFirst();
+                    if (update == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                    skipped = mSkipped;
+                    mSkipped = 0;
+                }
+                if (skipped > 0) {
+                    update = new PurchaseUpdate(update.mPurchases, update.mUpdatedPurchases, skipped);
+                }
+                MainThreadWatchdog.begin("onPurchasesUpdated subscriber");
+                try {
+                    mSubscriber.onPurchasesUpdated(update);
+                } finally {
+                    MainThreadWatchdog.end();
+                }
+            }
+            synchronized (this) {
+                mScheduled = false;
+            }
+        }
+    }
+
+    private final CopyOnWriteArrayList<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    // Guarded by this, so a new subscriber never sees the latest state after a newer one
+    private PurchaseUpdate mLatest;
+
+    /**
+     * Subscribes with a buffer of one, i.e. only the latest state is delivered
+     */
+    public Subscription subscribe(Executor executor, Subscriber subscriber) {
+        return subscribe(executor, subscriber, 1);
+    }
+
+    /**
+     * Subscribes to the purchase changes. If some purchases are already known, they are delivered
+     * right away.
+     *
+     * @param capacity maximum number of updates waiting to be delivered to this subscriber
+     */
+    public synchronized Subscription subscribe(Executor executor, Subscriber subscriber, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1");
+        }
+        Subscription subscription = new Subscription(executor, subscriber, capacity);
+        mSubscriptions.add(subscription);
+        PurchaseUpdate latest = mLatest;
+        if (latest != null) {
+            subscription.offer(new PurchaseUpdate(latest.mPurchases,
+                    Collections.<Purchase>emptyList(), 0));
+        }
+        return subscription;
+    }
+
+    /**
+     * Publishes a change to every subscriber
+     *
+     * @param purchases        all the purchases owned after the change, must not be modified
+     *                         afterwards
+     * @param updatedPurchases the purchases the change was about
+     */
+    synchronized void publish(List<Purchase> purchases, List<Purchase> updatedPurchases) {
+        PurchaseUpdate update = new PurchaseUpdate(purchases,
+                Collections.unmodifiableList(updatedPurchases), 0);
+        mLatest = update;
+        Log.d(TAG, "publish: " + updatedPurchases.size() + " updated purchase(s) to "
+                + mSubscriptions.size() + " subscriber(s)");
+        for (Subscription subscription : mSubscriptions) {
+            subscription.offer(update);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.util.Log;
+
+import com.android.billingclient.api.Purchase;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Decides when the owned subscriptions have to be re-queried.
+ * <p>
+ * A subscription can only change state (renew, lapse into grace period or expire) around the
+ * end of a billing period, so for every tracked subscription this class computes the next period
+ * boundary from its purchase time and billing period and schedules a single refresh at the
+ * earliest one. Refresh requests due after an already scheduled refresh, and boundaries
+ * that fall close to each other, are coalesced into one query.
+ * <p>
+ * Delays do not advance while the device sleeps, so {@link #onForeground(long)} re-checks
+ * the due time against the wall clock.
+ */
+public class SubscriptionRefreshScheduler {
+    private static final String TAG = "SubsRefreshScheduler";
+
+    // Play renews around the period boundary, give it some time before looking
+    static final long RENEWAL_SLACK_MS = 5 * 60 * 1000L;
+    // Period boundaries this close to each other are covered by a single query
+    static final long COALESCE_WINDOW_MS = 60 * 1000L;
+    private static final String DEFAULT_PERIOD = "P1M";
+
+    /**
+     * Runs the actual subscriptions query
+     */
+    public interface RefreshCallback {
+        void onRefreshDue();
+    }
+
+    private static final class Tracked {
+        final String sku;
+        final long purchaseTime;
+        final boolean autoRenewing;
+
+        Tracked(String sku, long purchaseTime, boolean autoRenewing) {
+            this.sku = sku;
+            this.purchaseTime = purchaseTime;
+            this.autoRenewing = autoRenewing;
+        }
+    }
+
+    private final BillingExecutors.SerialExecutor mExecutor;
+    private final RefreshCallback mCallback;
+    private final HashMap<String, int[]> mPeriods = new HashMap<>();
+    private final List<Tracked> mTracked = new ArrayList<>();
+    // Wall clock time of the scheduled refresh, Long.MAX_VALUE when nothing is scheduled
+    private long mScheduledAt = Long.MAX_VALUE;
+    private boolean mForeground;
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScheduledAt = Long.MAX_VALUE;
+            Log.d(TAG, "refresh due");
+            mCallback.onRefreshDue();
+        }
+    };
+
+    public SubscriptionRefreshScheduler(BillingExecutors.SerialExecutor executor, RefreshCallback callback) {
+        mExecutor = executor;
+        mCallback = callback;
+    }
+
+    /**
+     * Sets the billing period of a subscription SKU, as returned by
+     * {@code SkuDetails.getSubscriptionPeriod()} (ISO 8601, e.g. "P1M")
+     */
+    public void setSubscriptionPeriod(String sku, String isoPeriod) {
+        int[] period = parsePeriod(isoPeriod);
+        if (period != null) {
+            mPeriods.put(sku, period);
+        }
+    }
+
+    /**
+     * Replaces the tracked subscriptions with the result of a subscriptions query and schedules
+     * the next refresh.
+     */
+    public void update(List<Purchase> subscriptions, long nowMillis) {
+        mTracked.clear();
+        if (subscriptions != null) {
+            for (Purchase purchase : subscriptions) {
+                mTracked.add(new Tracked(purchase.getSku(), purchase.getPurchaseTime(),
+                        purchase.isAutoRenewing()));
+            }
+        }
+        // The query that delivered this list is the refresh we were waiting for
+        cancel();
+        long next = computeNextChange(nowMillis);
+        Log.d(TAG, "update: " + mTracked.size() + " subscription(s), next change at " + next);
+        schedule(next, nowMillis);
+    }
+
+    /**
+     * Explicitly asks for a refresh, e.g. after a purchase flow finished
+     */
+    public void requestRefresh(long nowMillis) {
+        schedule(nowMillis, nowMillis);
+    }
+
+    /**
+     * Refreshes right away if a state change was due while the app was in background, otherwise
+     * re-arms the pending refresh.
+     */
+    public void onForeground(long nowMillis) {
+        mForeground = true;
+        // Only boundaries after now are computed below, one passed in background is due now
+        boolean missed = mScheduledAt <= nowMillis;
+        cancel();
+        schedule(missed ? nowMillis : computeNextChange(nowMillis), nowMillis);
+    }
+
+    public void onBackground() {
+        mForeground = false;
+        mExecutor.cancel(mRefreshRunnable);
+    }
+
+    /**
+     * @return wall clock time at which the state of a tracked subscription could next change,
+     * or Long.MAX_VALUE when no subscription is tracked. Changes due within
+     * {@link #COALESCE_WINDOW_MS} of the earliest one are folded into the same refresh.
+     */
+    long computeNextChange(long nowMillis) {
+        long[] dues = new long[mTracked.size()];
+        long earliest = Long.MAX_VALUE;
+        for (int i = 0; i < dues.length; i++) {
+            Tracked tracked = mTracked.get(i);
+            // An auto-renewing subscription is renewed around the boundary, a cancelled one
+            // simply expires at it
+            long slack = tracked.autoRenewing ? RENEWAL_SLACK_MS : 0;
+            dues[i] = nextBoundary(tracked, nowMillis - slack) + slack;
+            earliest = Math.min(earliest, dues[i]);
+        }
+        long next = earliest;
+        for (long due : dues) {
+            if (due > next && due - earliest <= COALESCE_WINDOW_MS) {
+                next = due;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * @return the first period boundary of the subscription after the given time
+     */
+    private long nextBoundary(Tracked tracked, long afterMillis) {
+        int[] period = mPeriods.get(tracked.sku);
+        if (period == null) {
+            period = parsePeriod(DEFAULT_PERIOD);
+        }
+        // Boundaries are anchored to the purchase date so month lengths are honoured
+        Calendar calendar = Calendar.getInstance();
+        int periods = 1;
+        while (true) {
+            calendar.setTimeInMillis(tracked.purchaseTime);
+            calendar.add(Calendar.YEAR, period[0] * periods);
+            calendar.add(Calendar.MONTH, period[1] * periods);
+            calendar.add(Calendar.DAY_OF_MONTH, period[2] * periods);
+            long boundary = calendar.getTimeInMillis();
+            if (boundary > afterMillis || boundary <= tracked.purchaseTime) {
+                return boundary;
+            }
+            periods++;
+        }
+    }
+
+    private void schedule(long dueAt, long nowMillis) {
+        if (dueAt == Long.MAX_VALUE) {
+            return;
+        }
+        if (dueAt >= mScheduledAt) {
+            // The earlier refresh reschedules from fresh data once it has run
+            Log.d(TAG, "schedule: coalesced with the refresh at " + mScheduledAt);
+            return;
+        }
+        if (!mForeground && dueAt > nowMillis) {
+            // Picked up again by onForeground()
+            mScheduledAt = dueAt;
+            return;
+        }
+        mExecutor.cancel(mRefreshRunnable);
+        mScheduledAt = dueAt;
+        mExecutor.executeDelayed(mRefreshRunnable, Math.max(0, dueAt - nowMillis));
+    }
+
+    private void cancel() {
+        mExecutor.cancel(mRefreshRunnable);
+        mScheduledAt = Long.MAX_VALUE;
+    }
+
+    /**
+     * Parses an ISO 8601 period such as "P1W", "P3M" or "P1Y" into {years, months, days}
+     */
+    static int[] parsePeriod(String isoPeriod) {
+        if (isoPeriod == null || !isoPeriod.startsWith("P")) {
+            return null;
+        }
+        int[] period = new int[3];
+        int value = 0;
+        for (int i = 1; i < isoPeriod.length(); i++) {
+            char c = isoPeriod.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = value * 10 + (c - '0');
+                continue;
+            }
+            switch (c) {
+                case 'Y':
+                    period[0] += value;
+                    break;
+                case 'M':
+                    period[1] += value;
+                    break;
+                case 'W':
+                    period[2] += value * 7;
+                    break;
+                case 'D':
+                    period[2] += value;
+                    break;
+                default:
+                    return null;
+            }
+            value = 0;
+        }
+        return period[0] == 0 && period[1] == 0 && period[2] == 0 ? null : period;
+    }
+}
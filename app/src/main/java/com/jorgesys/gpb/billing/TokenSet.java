@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import java.util.Arrays;
+
+/**
+ * Immutable set of purchase tokens, kept as their 64-bit hashes in a sorted array.
+ * <p>
+ * Purchase tokens are a few hundred characters long, this keeps 8 bytes per token and no object
+ * per entry, so sets built from long purchase histories stay small. Two sets are compared with a
+ * single merge of their arrays. Collisions are negligible at the sizes of a purchase history.
+ */
+final class TokenSet {
+    static final TokenSet EMPTY = new TokenSet(new long[0], 0);
+
+    private final long[] mHashes;
+    private final int mSize;
+
+    private TokenSet(long[] hashes, int size) {
+        mHashes = hashes;
+        mSize = size;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return the i-th smallest hash of the set
+     */
+    long hashAt(int index) {
+        if (index >= mSize) {
+            throw new IndexOutOfBoundsException(index + " >= " + mSize);
+        }
+        return mHashes[index];
+    }
+
+    boolean contains(String token) {
+        return containsHash(hash(token));
+    }
+
+    boolean containsHash(long hash) {
+        return Arrays.binarySearch(mHashes, 0, mSize, hash) >= 0;
+    }
+
+    /**
+     * FNV-1a over the characters of the string. Hashes are persisted, see PurchaseReconciler,
+     * so this must not change without a new file format.
+     */
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Collects tokens or hashes in any order, duplicates included
+     */
+    static final class Builder {
+        private long[] mHashes;
+        private int mSize;
+
+        Builder(int expectedSize) {
+            mHashes = new long[Math.max(expectedSize, 4)];
+        }
+
+        Builder add(String token) {
+            return addHash(hash(token));
+        }
+
+        Builder addHash(long hash) {
+            if (mSize == mHashes.length) {
+                mHashes = Arrays.copyOf(mHashes, mSize * 2);
+            }
+            mHashes[mSize++] = hash;
+            return this;
+        }
+
+        TokenSet build() {
+            long[] hashes = Arrays.copyOf(mHashes, mSize);
+            Arrays.sort(hashes);
+            int size = 0;
+            for (int i = 0; i < hashes.length; i++) {
+                if (size == 0 || hashes[size - 1] != hashes[i]) {
+                    hashes[size++] = hashes[i];
+                }
+            }
+            return new TokenSet(hashes, size);
+        }
+    }
+}
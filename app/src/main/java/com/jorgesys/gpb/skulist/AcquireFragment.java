@@ -17,28 +17,32 @@
 package com.jorgesys.gpb.skulist;
 
 import android.os.Bundle;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.EditText;
 import android.widget.TextView;
 
 import androidx.annotation.Nullable;
 import androidx.appcompat.widget.Toolbar;
 import androidx.fragment.app.DialogFragment;
+import androidx.lifecycle.Observer;
+import androidx.lifecycle.ViewModelProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.android.billingclient.api.BillingClient;
-import com.android.billingclient.api.BillingResult;
-import com.android.billingclient.api.SkuDetails;
-import com.android.billingclient.api.SkuDetailsResponseListener;
 import com.jorgesys.gpb.R;
+import com.jorgesys.gpb.billing.BillingManager;
 import com.jorgesys.gpb.billing.BillingProvider;
 import com.jorgesys.gpb.skulist.row.SkuRowData;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Displays a screen with various in-app purchase and subscription options
@@ -50,12 +54,16 @@ public class AcquireFragment extends DialogFragment {
     private SkusAdapter mAdapter;
     private View mLoadingView;
     private TextView mErrorTextView;
-    private BillingProvider mBillingProvider;
+    // Holds the application context only, unlike the activity providing it
+    private BillingManager mBillingManager;
+    private CatalogViewModel mCatalog;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setStyle(DialogFragment.STYLE_NORMAL, R.style.AppTheme);
+        // Outlives this fragment, so rotating the dialog does not query the SKUs again
+        mCatalog = new ViewModelProvider(requireActivity()).get(CatalogViewModel.class);
     }
 
     @Override
@@ -75,11 +83,68 @@ public class AcquireFragment extends DialogFragment {
             }
         });
         toolbar.setTitle(R.string.button_purchase);
+        toolbar.inflateMenu(R.menu.acquire_fragment);
+        toolbar.getMenu().findItem(getSortMenuId(mCatalog.getSortOrder())).setChecked(true);
+        toolbar.setOnMenuItemClickListener(new Toolbar.OnMenuItemClickListener() {
+            @Override
+            public boolean onMenuItemClick(MenuItem item) {
+                int sortOrder = getSortOrder(item.getItemId());
+                if (sortOrder == -1) {
+                    return false;
+                }
+                item.setChecked(true);
+                mCatalog.setSortOrder(sortOrder);
+                return true;
+            }
+        });
+        // Filtering runs against the in-memory index, Play is not queried again
+        EditText searchView = (EditText) root.findViewById(R.id.search_edittext);
+        searchView.setText(mCatalog.getQuery());
+        searchView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mCatalog.setQuery(s.toString());
+            }
+        });
         setWaitScreen(true);
+        // Rows come from a pool shared with the previous instances of this fragment
+        mRecyclerView.setRecycledViewPool(SkuRowPool.get(requireActivity()));
         onManagerReady((BillingProvider) getActivity());
         return root;
     }
 
+    @Override
+    public void onViewCreated(View view, @Nullable Bundle savedInstanceState) {
+        super.onViewCreated(view, savedInstanceState);
+        mCatalog.getState().observe(getViewLifecycleOwner(), new Observer<CatalogViewModel.CatalogState>() {
+            @Override
+            public void onChanged(CatalogViewModel.CatalogState state) {
+                render(state);
+            }
+        });
+        mCatalog.getVisibleRows().observe(getViewLifecycleOwner(), new Observer<List<SkuRowData>>() {
+            @Override
+            public void onChanged(List<SkuRowData> rows) {
+                mAdapter.updateData(rows);
+            }
+        });
+        mBillingManager.getPurchaseFlows().observe(getViewLifecycleOwner(),
+                new Observer<Set<String>>() {
+                    @Override
+                    public void onChanged(Set<String> runningFlows) {
+                        mAdapter.setRunningFlows(runningFlows);
+                    }
+                });
+    }
+
     /**
      * Refreshes this fragment's UI
      */
@@ -92,17 +157,22 @@ public class AcquireFragment extends DialogFragment {
 
     /**
      * Notifies the fragment that billing manager is ready and provides a BillingProvider
-     * instance to access it
+     * instance to access it. Only the manager is kept, not the provider.
      */
     public void onManagerReady(BillingProvider billingProvider) {
-        mBillingProvider = billingProvider;
+        mBillingManager = billingProvider.getBillingManager();
         if (mRecyclerView != null) {
-            mAdapter = new SkusAdapter(mBillingProvider);
+            mAdapter = new SkusAdapter(mBillingManager);
             if (mRecyclerView.getAdapter() == null) {
                 mRecyclerView.setAdapter(mAdapter);
-                mRecyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+                LinearLayoutManager layoutManager = new LinearLayoutManager(getContext());
+                // Give the rows back to the shared pool when the dialog goes away
+                layoutManager.setRecycleChildrenOnDetach(true);
+                mRecyclerView.setLayoutManager(layoutManager);
             }
-            handleManagerAndUiReady();
+            mCatalog.loadIfNeeded(mBillingManager);
+            // Inflate the rows off the main thread while the SKU query is in flight
+            SkuRowPool.prewarm(mRecyclerView, mAdapter, getCatalogSize());
         }
     }
 
@@ -115,43 +185,54 @@ public class AcquireFragment extends DialogFragment {
     }
 
     /**
-     * Executes query for SKU details at the background thread
+     * Shows the catalog held by {@link CatalogViewModel}
      */
-    private void handleManagerAndUiReady() {
-        // TODO: If Billing Manager was successfully initialized - start querying for SKUs
-        final List<SkuRowData> inList = new ArrayList<>();
-        SkuDetailsResponseListener responseListener = new SkuDetailsResponseListener() {
-            @Override
-            public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
-                if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && skuDetailsList != null) {
-                    for (SkuDetails details : skuDetailsList) {
-                        Log.w(TAG, "Found sku: " + details);
-                        //inList.add(new SkuRowData(details.getSku(), details.getTitle(), details.getPrice(), details.getDescription(), details.getType()));
-                        inList.add(new SkuRowData(details.getSku(), details.getTitle(), details.getPrice(), details.getDescription(), details.getType(), details));
-                    }
+    private void render(CatalogViewModel.CatalogState state) {
+        // The rows themselves come filtered and sorted through getVisibleRows()
+        if (!state.getRows().isEmpty()) {
+            mErrorTextView.setVisibility(View.GONE);
+            setWaitScreen(false);
+        } else if (state.getStatus() == CatalogViewModel.CatalogState.ERROR) {
+            // BillingManager bounds every query with a deadline, so this is reached
+            // instead of waiting forever when Play is unhealthy
+            displayAnErrorIfNeeded(state.getResponseCode());
+        } else {
+            setWaitScreen(true);
+        }
+    }
 
-                    if (inList.size() == 0) {
-                        displayAnErrorIfNeeded();
-                    } else {
-                        mAdapter.updateData(inList);
-                        setWaitScreen(false);
-                    }
-                }
-            }
-        };
-        //Start querying for SKUs
-        List<String> skus = mBillingProvider.getBillingManager().getSkus(BillingClient.SkuType.INAPP);
-        mBillingProvider.getBillingManager().querySkuDetailsAsync(BillingClient.SkuType.INAPP, skus, responseListener);
+    private static int getSortMenuId(int sortOrder) {
+        switch (sortOrder) {
+            case CatalogIndex.SORT_PRICE_ASC:
+                return R.id.menu_sort_price_asc;
+            case CatalogIndex.SORT_PRICE_DESC:
+                return R.id.menu_sort_price_desc;
+            case CatalogIndex.SORT_TITLE:
+                return R.id.menu_sort_title;
+            default:
+                return R.id.menu_sort_default;
+        }
+    }
 
-        //Start querying for subscriptions SKUs
-        skus = mBillingProvider.getBillingManager().getSkus(BillingClient.SkuType.SUBS);
-        mBillingProvider.getBillingManager().querySkuDetailsAsync(BillingClient.SkuType.SUBS, skus, responseListener);
+    private static int getSortOrder(int menuId) {
+        if (menuId == R.id.menu_sort_default) {
+            return CatalogIndex.SORT_DEFAULT;
+        } else if (menuId == R.id.menu_sort_price_asc) {
+            return CatalogIndex.SORT_PRICE_ASC;
+        } else if (menuId == R.id.menu_sort_price_desc) {
+            return CatalogIndex.SORT_PRICE_DESC;
+        } else if (menuId == R.id.menu_sort_title) {
+            return CatalogIndex.SORT_TITLE;
+        }
+        return -1;
+    }
 
-        // and only otherwise display an error
-        //displayAnErrorIfNeeded();
+    private int getCatalogSize() {
+        return mBillingManager.getSkus(BillingClient.SkuType.INAPP).size()
+                + mBillingManager.getSkus(BillingClient.SkuType.SUBS).size();
     }
 
-    private void displayAnErrorIfNeeded() {
+    private void displayAnErrorIfNeeded(int responseCode) {
         if (getActivity() == null || getActivity().isFinishing()) {
             Log.i(TAG, "No need to show an error - activity is finishing already");
             return;
@@ -159,9 +240,17 @@ public class AcquireFragment extends DialogFragment {
 
         mLoadingView.setVisibility(View.GONE);
         mErrorTextView.setVisibility(View.VISIBLE);
-        mErrorTextView.setText(getText(R.string.error_codelab_not_finished));
-
-        // TODO: Here you will need to handle various respond codes from BillingManager
+        switch (responseCode) {
+            case BillingClient.BillingResponseCode.OK:
+                mErrorTextView.setText(getText(R.string.error_no_skus));
+                break;
+            case BillingClient.BillingResponseCode.BILLING_UNAVAILABLE:
+                mErrorTextView.setText(getText(R.string.error_billing_unavailable));
+                break;
+            default:
+                mErrorTextView.setText(getText(R.string.error_billing_default));
+                break;
+        }
     }
 }
 
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb.skulist;
+
+import com.jorgesys.gpb.skulist.row.SkuRowData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Search and sort index over a snapshot of the SKU catalog, built once per snapshot.
+ * <p>
+ * The words of every title and description are kept in a sorted array, so the rows matching a
+ * word prefix are a contiguous range found by binary search. Prices are kept in micros in a
+ * {@code long[]} and every sort order is precomputed as an array of row indexes, so a query
+ * is a few binary searches plus one pass over the chosen order, without sorting or boxing.
+ * Not thread safe, queries are expected on the main thread.
+ */
+public final class CatalogIndex {
+    public static final int SORT_DEFAULT = 0;
+    public static final int SORT_PRICE_ASC = 1;
+    public static final int SORT_PRICE_DESC = 2;
+    public static final int SORT_TITLE = 3;
+
+    private final SkuRowData[] mRows;
+    private final long[] mPriceMicros;
+    // Row indexes in each sort order, indexed by SORT_*
+    private final int[][] mOrders;
+    // Sorted words and the row each one comes from
+    private final String[] mWords;
+    private final int[] mWordRows;
+    // Per row stamp of the last query word it matched, see query()
+    private final int[] mStamps;
+    private int mStampBase;
+
+    public CatalogIndex(List<SkuRowData> rows) {
+        final int size = rows.size();
+        mRows = rows.toArray(new SkuRowData[size]);
+        mPriceMicros = new long[size];
+        for (int i = 0; i < size; i++) {
+            mPriceMicros[i] = mRows[i].getPriceAmountMicros();
+        }
+
+        mOrders = new int[4][];
+        mOrders[SORT_DEFAULT] = new int[size];
+        for (int i = 0; i < size; i++) {
+            mOrders[SORT_DEFAULT][i] = i;
+        }
+        mOrders[SORT_PRICE_ASC] = sortedByPrice(false);
+        mOrders[SORT_PRICE_DESC] = sortedByPrice(true);
+        mOrders[SORT_TITLE] = sortedOrder(new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return String.CASE_INSENSITIVE_ORDER.compare(nonNull(mRows[a].getTitle()),
+                        nonNull(mRows[b].getTitle()));
+            }
+        });
+
+        final List<String> words = new ArrayList<>();
+        final List<Integer> wordRows = new ArrayList<>();
+        HashSet<String> rowWords = new HashSet<>();
+        for (int i = 0; i < size; i++) {
+            rowWords.clear();
+            tokenize(mRows[i].getTitle(), rowWords);
+            tokenize(mRows[i].getDescription(), rowWords);
+            for (String word : rowWords) {
+                words.add(word);
+                wordRows.add(i);
+            }
+        }
+        Integer[] entries = new Integer[words.size()];
+        for (int i = 0; i < entries.length; i++) {
+            entries[i] = i;
+        }
+        Arrays.sort(entries, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return words.get(a).compareTo(words.get(b));
+            }
+        });
+        mWords = new String[entries.length];
+        mWordRows = new int[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            mWords[i] = words.get(entries[i]);
+            mWordRows[i] = wordRows.get(entries[i]);
+        }
+        mStamps = new int[size];
+    }
+
+    public int size() {
+        return mRows.length;
+    }
+
+    /**
+     * @param query     words to look for, a row matches if every word of the query is a prefix of
+     *                  a word of its title or description. Empty matches everything.
+     * @param sortOrder one of the SORT_* constants
+     * @return the matching rows in the given order
+     */
+    public List<SkuRowData> query(String query, int sortOrder) {
+        HashSet<String> queryWords = new HashSet<>();
+        tokenize(query, queryWords);
+        int[] order = mOrders[sortOrder];
+        if (queryWords.isEmpty()) {
+            List<SkuRowData> all = new ArrayList<>(order.length);
+            for (int row : order) {
+                all.add(mRows[row]);
+            }
+            return Collections.unmodifiableList(all);
+        }
+
+        // A row stamped base + k matched the first k words, this avoids clearing per query
+        if (mStampBase > Integer.MAX_VALUE - queryWords.size() - 1) {
+            Arrays.fill(mStamps, 0);
+            mStampBase = 0;
+        }
+        final int base = ++mStampBase;
+        mStampBase += queryWords.size();
+        int matched = 0;
+        for (String word : queryWords) {
+            int from = lowerBound(word);
+            // Every word that has the query word as prefix sorts before word + U+FFFF
+            int to = lowerBound(word + '\uffff');
+            for (int i = from; i < to; i++) {
+                int row = mWordRows[i];
+                if (mStamps[row] == base + matched - 1 || (matched == 0 && mStamps[row] < base)) {
+                    mStamps[row] = base + matched;
+                }
+            }
+            matched++;
+        }
+
+        int expected = base + matched - 1;
+        List<SkuRowData> result = new ArrayList<>();
+        for (int row : order) {
+            if (mStamps[row] == expected) {
+                result.add(mRows[row]);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    private int lowerBound(String word) {
+        int low = 0;
+        int high = mWords.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mWords[mid].compareTo(word) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Bottom-up merge sort of the row indexes by price, on primitives only. Stable, so rows with
+     * the same price keep the query order.
+     */
+    private int[] sortedByPrice(boolean descending) {
+        int size = mRows.length;
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        int[] merged = new int[size];
+        for (int width = 1; width < size; width *= 2) {
+            for (int from = 0; from < size; from += 2 * width) {
+                int middle = Math.min(from + width, size);
+                int to = Math.min(from + 2 * width, size);
+                int left = from;
+                int right = middle;
+                for (int i = from; i < to; i++) {
+                    // The right run only goes first when strictly before the left one
+                    if (left < middle && (right == to
+                            || !isBefore(order[right], order[left], descending))) {
+                        merged[i] = order[left++];
+                    } else {
+                        merged[i] = order[right++];
+                    }
+                }
+            }
+            int[] swap = order;
+            order = merged;
+            merged = swap;
+        }
+        return order;
+    }
+
+    private boolean isBefore(int row, int otherRow, boolean descending) {
+        return descending ? mPriceMicros[row] > mPriceMicros[otherRow]
+                : mPriceMicros[row] < mPriceMicros[otherRow];
+    }
+
+    private int[] sortedOrder(Comparator<Integer> comparator) {
+        Integer[] boxed = new Integer[mRows.length];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = i;
+        }
+        // Stable, so rows with equal keys keep the query order
+        Arrays.sort(boxed, comparator);
+        int[] order = new int[boxed.length];
+        for (int i = 0; i < boxed.length; i++) {
+            order[i] = boxed[i];
+        }
+        return order;
+    }
+
+    /**
+     * Adds the lower case words of the text, i.e. its runs of letters and digits
+     */
+    private static void tokenize(String text, HashSet<String> words) {
+        if (text == null) {
+            return;
+        }
+        String lower = text.toLowerCase(Locale.getDefault());
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean inWord = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+            if (inWord && start == -1) {
+                start = i;
+            } else if (!inWord && start != -1) {
+                words.add(lower.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    private static String nonNull(String text) {
+        return text == null ? "" : text;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb.skulist;
+
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+import androidx.lifecycle.ViewModel;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+import com.jorgesys.gpb.billing.BillingManager;
+import com.jorgesys.gpb.skulist.row.SkuRowData;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Locale;
+
+/**
+ * Holds the SKU catalog shown by AcquireFragment.
+ * <p>
+ * Scoped to the activity, so the catalog survives both the recreation of the fragment on
+ * rotation and the dialog being closed and opened again. SKUs are only queried the first time,
+ * after a failed load or on an explicit {@link #refresh(BillingManager)}. If only one of the
+ * in-app and subscription queries failed, the next load queries that type again.
+ */
+public class CatalogViewModel extends ViewModel {
+    private static final String TAG = "CatalogViewModel";
+
+    /**
+     * Immutable snapshot of the catalog
+     */
+    public static final class CatalogState {
+        public static final int IDLE = 0;
+        public static final int LOADING = 1;
+        public static final int LOADED = 2;
+        public static final int ERROR = 3;
+
+        private final int mStatus;
+        private final List<SkuRowData> mRows;
+        private final int mResponseCode;
+
+        CatalogState(int status, List<SkuRowData> rows, int responseCode) {
+            mStatus = status;
+            mRows = rows;
+            mResponseCode = responseCode;
+        }
+
+        public int getStatus() {
+            return mStatus;
+        }
+
+        /**
+         * @return the SKUs loaded so far, also while still loading the rest
+         */
+        public List<SkuRowData> getRows() {
+            return mRows;
+        }
+
+        /**
+         * @return response code of the failed query when {@link #getStatus()} is ERROR, or when
+         * LOADED without the SKUs of one type
+         */
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+    }
+
+    private final MutableLiveData<CatalogState> mState = new MutableLiveData<>(
+            new CatalogState(CatalogState.IDLE, Collections.<SkuRowData>emptyList(),
+                    BillingClient.BillingResponseCode.OK));
+    // Results of an older load are ignored
+    private int mGeneration;
+    // SKU types whose query failed in the last load
+    private Set<String> mFailedTypes = Collections.emptySet();
+    // Rows of the current state after applying the search query and sort order
+    private final MutableLiveData<List<SkuRowData>> mVisibleRows = new MutableLiveData<>(
+            Collections.<SkuRowData>emptyList());
+    private CatalogIndex mIndex = new CatalogIndex(Collections.<SkuRowData>emptyList());
+    private String mQuery = "";
+    private int mSortOrder = CatalogIndex.SORT_DEFAULT;
+    // Kept with the catalog, so a refresh reuses the formatters of the previous load
+    private final PriceFormatter mPriceFormatter = new PriceFormatter();
+
+    public LiveData<CatalogState> getState() {
+        return mState;
+    }
+
+    public LiveData<List<SkuRowData>> getVisibleRows() {
+        return mVisibleRows;
+    }
+
+    public String getQuery() {
+        return mQuery;
+    }
+
+    public int getSortOrder() {
+        return mSortOrder;
+    }
+
+    /**
+     * Filters the rows to the ones matching every word of the query, see {@link CatalogIndex}
+     */
+    @MainThread
+    public void setQuery(String query) {
+        if (!mQuery.equals(query)) {
+            mQuery = query;
+            updateVisibleRows();
+        }
+    }
+
+    /**
+     * @param sortOrder one of the CatalogIndex.SORT_* constants
+     */
+    @MainThread
+    public void setSortOrder(int sortOrder) {
+        if (mSortOrder != sortOrder) {
+            mSortOrder = sortOrder;
+            updateVisibleRows();
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        // Drop the results of a load still in flight
+        mGeneration++;
+    }
+
+    /**
+     * Loads the catalog unless it is already loaded or loading, or the SKU types that failed to
+     * load last time
+     */
+    @MainThread
+    public void loadIfNeeded(BillingManager billingManager) {
+        CatalogState state = mState.getValue();
+        if (state.getStatus() == CatalogState.IDLE || state.getStatus() == CatalogState.ERROR) {
+            refresh(billingManager);
+        } else if (state.getStatus() == CatalogState.LOADED && !mFailedTypes.isEmpty()) {
+            // Keeps the rows of the types that did load
+            List<SkuRowData> loaded = new ArrayList<>();
+            for (SkuRowData row : state.getRows()) {
+                if (!mFailedTypes.contains(row.getBillingType())) {
+                    loaded.add(row);
+                }
+            }
+            load(billingManager, new ArrayList<>(mFailedTypes), loaded);
+        }
+    }
+
+    /**
+     * Queries the SKUs again, keeping the current rows on screen meanwhile
+     */
+    @MainThread
+    public void refresh(BillingManager billingManager) {
+        load(billingManager, Arrays.asList(BillingClient.SkuType.INAPP, BillingClient.SkuType.SUBS),
+                Collections.<SkuRowData>emptyList());
+    }
+
+    private void load(BillingManager billingManager, List<String> types, List<SkuRowData> loaded) {
+        Log.d(TAG, "load() " + types);
+        final int generation = ++mGeneration;
+        final List<SkuRowData> rows = new ArrayList<>(loaded);
+        final int[] remaining = {types.size()};
+        final int[] failure = {BillingClient.BillingResponseCode.OK};
+        final Set<String> failedTypes = new HashSet<>();
+        mState.setValue(new CatalogState(CatalogState.LOADING, mState.getValue().getRows(),
+                BillingClient.BillingResponseCode.OK));
+        for (final String type : types) {
+            // BillingManager calls back on the main thread
+            SkuDetailsResponseListener responseListener = new SkuDetailsResponseListener() {
+                @Override
+                public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                    if (generation != mGeneration) {
+                        return;
+                    }
+                    remaining[0]--;
+                    if (billingResult.getResponseCode() == BillingClient.BillingResponseCode.OK && skuDetailsList != null) {
+                        Locale locale = Locale.getDefault();
+                        for (SkuDetails details : skuDetailsList) {
+                            rows.add(newRow(details, locale));
+                        }
+                    } else if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                        failure[0] = billingResult.getResponseCode();
+                        failedTypes.add(type);
+                    }
+                    if (remaining[0] == 0) {
+                        mFailedTypes = failedTypes;
+                    }
+                    onResponse(rows, remaining[0] == 0, failure[0]);
+                }
+            };
+            billingManager.querySkuDetailsAsync(type, billingManager.getSkus(type), responseListener);
+        }
+    }
+
+    /**
+     * Formats the price here, once per load, so binding a row only sets a ready string
+     */
+    private SkuRowData newRow(SkuDetails details, Locale locale) {
+        String price = mPriceFormatter.format(details.getPriceAmountMicros(),
+                details.getPriceCurrencyCode(), locale);
+        if (price == null) {
+            // Currency unknown to this device, Play's own string is still right
+            price = details.getPrice();
+        }
+        return new SkuRowData(details.getSku(), details.getTitle(), price,
+                details.getPriceAmountMicros(), details.getPriceCurrencyCode(),
+                details.getDescription(), details.getType(), details);
+    }
+
+    private void onResponse(List<SkuRowData> rows, boolean done, int responseCode) {
+        List<SkuRowData> snapshot = Collections.unmodifiableList(new ArrayList<>(rows));
+        if (!snapshot.isEmpty()) {
+            setSnapshot(snapshot);
+            mState.setValue(new CatalogState(done ? CatalogState.LOADED : CatalogState.LOADING,
+                    snapshot, done ? responseCode : BillingClient.BillingResponseCode.OK));
+        } else if (done) {
+            // Nothing found: OK means there are no SKUs, otherwise a query failed
+            setSnapshot(snapshot);
+            mState.setValue(new CatalogState(CatalogState.ERROR, snapshot, responseCode));
+        }
+    }
+
+    private void setSnapshot(List<SkuRowData> snapshot) {
+        // Built once per snapshot, every keystroke afterwards only queries it
+        mIndex = new CatalogIndex(snapshot);
+        updateVisibleRows();
+    }
+
+    private void updateVisibleRows() {
+        mVisibleRows.setValue(mIndex.query(mQuery, mSortOrder));
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb.skulist;
+
+import android.util.Log;
+
+import androidx.annotation.MainThread;
+
+import java.math.BigDecimal;
+import java.text.NumberFormat;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Formats prices given in micros, with one NumberFormat per locale and currency.
+ * <p>
+ * A NumberFormat is costly to create and not thread safe, so they are created on first use,
+ * cached and only used on the main thread. Rows are formatted once per catalog load, see
+ * CatalogViewModel, never while binding.
+ */
+final class PriceFormatter {
+    private static final String TAG = "PriceFormatter";
+
+    // Keyed by locale and currency code, null for currencies unknown to the device
+    private final HashMap<String, NumberFormat> mFormats = new HashMap<>();
+
+    /**
+     * @param priceMicros  price in millionths of the currency, as given by Play
+     * @param currencyCode ISO 4217 code of the currency
+     * @return the price in the locale's format, or null if the currency is unknown
+     */
+    @MainThread
+    String format(long priceMicros, String currencyCode, Locale locale) {
+        NumberFormat format = getFormat(currencyCode, locale);
+        if (format == null) {
+            return null;
+        }
+        // Exact, e.g. 990000 micros is 0.99 rather than the closest double
+        return format.format(BigDecimal.valueOf(priceMicros, 6));
+    }
+
+    @MainThread
+    NumberFormat getFormat(String currencyCode, Locale locale) {
+        String key = locale + "/" + currencyCode;
+        if (mFormats.containsKey(key)) {
+            return mFormats.get(key);
+        }
+        NumberFormat format = null;
+        if (currencyCode != null) {
+            try {
+                Currency currency = Currency.getInstance(currencyCode);
+                format = NumberFormat.getCurrencyInstance(locale);
+                format.setCurrency(currency);
+                // The locale's own currency may use other digits, e.g. JPY prices in a US locale
+                int digits = currency.getDefaultFractionDigits();
+                if (digits >= 0) {
+                    format.setMinimumFractionDigits(digits);
+                    format.setMaximumFractionDigits(digits);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Unknown currency: " + currencyCode);
+                format = null;
+            }
+        }
+        mFormats.put(key, format);
+        return format;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb.skulist;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.util.LruCache;
+import android.widget.ImageView;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.MainThread;
+
+import com.jorgesys.gpb.R;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Loads the icons of the SKU rows.
+ * <p>
+ * Icons are resolved through a registry of SKU to drawable, decoded on a background thread,
+ * downsampled to the size of the icon view and kept in an LRU cache of decoded bitmaps, so
+ * binding a row only costs a cache lookup on the main thread. Bitmaps evicted from the cache
+ * and no longer shown are reused for the next decodes.
+ */
+public final class SkuIconLoader {
+    private static final String TAG = "SkuIconLoader";
+
+    // Bitmaps kept around for reuse, beyond that they are left to the GC
+    private static final int MAX_REUSABLE_BITMAPS = 4;
+
+    private static final HashMap<String, Integer> ICONS = new HashMap<>();
+
+    static {
+        //SKUs defined in Google Play Console
+        ICONS.put("gas", R.drawable.gas_icon);
+        ICONS.put("premium", R.drawable.premium_icon);
+        ICONS.put("subcription_gold", R.drawable.gold_icon);
+    }
+
+    private static SkuIconLoader sInstance;
+
+    private final Resources mResources;
+    private final int mIconSize;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final ExecutorService mDecoder = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "SkuIconLoader");
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        }
+    });
+    private final LruCache<Integer, Bitmap> mCache;
+    // Icon each view is showing or waiting for, only touched on the main thread
+    private final WeakHashMap<ImageView, Integer> mBound = new WeakHashMap<>();
+    // Guarded by itself, read by the decoder thread
+    private final ArrayList<Bitmap> mReusable = new ArrayList<>();
+
+    /**
+     * Registers the icon of a SKU, SKUs without an icon show none
+     */
+    public static synchronized void registerIcon(String sku, @DrawableRes int resId) {
+        ICONS.put(sku, resId);
+    }
+
+    private static synchronized int resolveIcon(String sku) {
+        Integer resId = ICONS.get(sku);
+        return resId == null ? 0 : resId;
+    }
+
+    @MainThread
+    public static SkuIconLoader get(Context context) {
+        if (sInstance == null) {
+            sInstance = new SkuIconLoader(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private SkuIconLoader(Context context) {
+        mResources = context.getResources();
+        mIconSize = mResources.getDimensionPixelSize(R.dimen.sku_icon_size);
+        int maxBytes = (int) Math.min(Runtime.getRuntime().maxMemory() / 32, 4 * 1024 * 1024);
+        mCache = new LruCache<Integer, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Integer resId, Bitmap bitmap) {
+                return bitmap.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Integer resId, Bitmap oldValue, Bitmap newValue) {
+                // Puts happen on the main thread, so this does too
+                if (evicted && !mBound.containsValue(resId)) {
+                    synchronized (mReusable) {
+                        if (mReusable.size() < MAX_REUSABLE_BITMAPS) {
+                            mReusable.add(oldValue);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the icon of the SKU in the view, right away if it is cached, otherwise once decoded.
+     * Unknown SKUs clear the view, which may still show the icon of a recycled row.
+     */
+    @MainThread
+    public void load(String sku, final ImageView view) {
+        final int resId = resolveIcon(sku);
+        if (resId == 0) {
+            mBound.remove(view);
+            view.setImageDrawable(null);
+            return;
+        }
+        Bitmap cached = mCache.get(resId);
+        mBound.put(view, resId);
+        if (cached != null) {
+            view.setImageBitmap(cached);
+            return;
+        }
+        view.setImageDrawable(null);
+        final WeakReference<ImageView> viewRef = new WeakReference<>(view);
+        mDecoder.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = decode(resId);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(resId, bitmap, viewRef.get());
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDecoded(int resId, Bitmap bitmap, ImageView view) {
+        if (bitmap == null) {
+            return;
+        }
+        if (mCache.get(resId) == null) {
+            mCache.put(resId, bitmap);
+        }
+        // The view may have been rebound to another SKU meanwhile
+        if (view != null && Integer.valueOf(resId).equals(mBound.get(view))) {
+            view.setImageBitmap(mCache.get(resId));
+        }
+    }
+
+    /**
+     * Decodes the drawable with the largest power of two subsampling that keeps it at least
+     * as large as the icon view, which scales the rest of the way
+     */
+    private Bitmap decode(int resId) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeResource(mResources, resId, options);
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= mIconSize
+                && options.outHeight / (sampleSize * 2) >= mIconSize) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        options.inMutable = true;
+        int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        options.inBitmap = takeReusable(width * height * 4);
+        try {
+            return BitmapFactory.decodeResource(mResources, resId, options);
+        } catch (IllegalArgumentException e) {
+            // The reused bitmap did not fit after all
+            Log.w(TAG, "decode: could not reuse bitmap", e);
+            options.inBitmap = null;
+            return BitmapFactory.decodeResource(mResources, resId, options);
+        }
+    }
+
+    private Bitmap takeReusable(int byteCount) {
+        synchronized (mReusable) {
+            Iterator<Bitmap> iterator = mReusable.iterator();
+            while (iterator.hasNext()) {
+                Bitmap bitmap = iterator.next();
+                if (bitmap.isMutable() && bitmap.getAllocationByteCount() >= byteCount) {
+                    iterator.remove();
+                    return bitmap;
+                }
+            }
+        }
+        return null;
+    }
+}
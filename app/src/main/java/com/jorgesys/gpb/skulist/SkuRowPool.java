@@ -0,0 +1,145 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.jorgesys.gpb.skulist;
+
+import android.content.Context;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+
+import androidx.annotation.MainThread;
+import androidx.asynclayoutinflater.view.AsyncLayoutInflater;
+import androidx.fragment.app.FragmentActivity;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+import androidx.recyclerview.widget.RecyclerView;
+
+import com.jorgesys.gpb.R;
+import com.jorgesys.gpb.skulist.row.RowViewHolder;
+
+import java.lang.ref.WeakReference;
+
+/**
+ * RecycledViewPool of SKU rows shared by all the AcquireFragment instances of an activity.
+ * <p>
+ * Rows are inflated on a background thread ahead of time, while the SKU query is in flight, so
+ * that the first layout of the list finds them in the pool instead of inflating them on the
+ * critical frame. Rows hold on to the activity they were inflated for, so the pool is dropped
+ * when that activity is destroyed, or as soon as it is requested for a different one.
+ */
+final class SkuRowPool {
+    private static final String TAG = "SkuRowPool";
+
+    static final int VIEW_TYPE_ROW = 0;
+
+    private static RecyclerView.RecycledViewPool sPool;
+    private static WeakReference<FragmentActivity> sActivity;
+    // Rows being inflated for the current pool
+    private static int sInflating;
+    // Row handed over to SkusAdapter.onCreateViewHolder()
+    private static View sInflatedRow;
+
+    private SkuRowPool() {
+    }
+
+    /**
+     * @return the pool for rows inflated for the given activity
+     */
+    @MainThread
+    static RecyclerView.RecycledViewPool get(FragmentActivity activity) {
+        if (sPool == null || sActivity.get() != activity) {
+            release();
+            sPool = new RecyclerView.RecycledViewPool();
+            sActivity = new WeakReference<>(activity);
+            sInflating = 0;
+            activity.getLifecycle().addObserver(new LifecycleEventObserver() {
+                @Override
+                public void onStateChanged(LifecycleOwner source, Lifecycle.Event event) {
+                    if (event == Lifecycle.Event.ON_DESTROY && sActivity != null && sActivity.get() == source) {
+                        release();
+                    }
+                }
+            });
+        }
+        return sPool;
+    }
+
+    /**
+     * Drops the pool, and with it the rows and the activity they reference
+     */
+    @MainThread
+    private static void release() {
+        if (sPool != null) {
+            sPool.clear();
+        }
+        sPool = null;
+        sActivity = null;
+        sInflating = 0;
+    }
+
+    /**
+     * Starts inflating the rows that fit in the list's viewport, without going over the catalog
+     * size and counting the rows already pooled
+     */
+    @MainThread
+    static void prewarm(final RecyclerView recyclerView, final SkusAdapter adapter, int catalogSize) {
+        Context context = recyclerView.getContext();
+        // Set by get(), the list's context may be a theme wrapper of the activity
+        final RecyclerView.RecycledViewPool pool = recyclerView.getRecycledViewPool();
+        int rowHeight = context.getResources().getDimensionPixelSize(R.dimen.sku_details_row_height);
+        int viewportRows = context.getResources().getDisplayMetrics().heightPixels / rowHeight + 1;
+        int rows = Math.min(viewportRows, catalogSize);
+        pool.setMaxRecycledViews(VIEW_TYPE_ROW, Math.max(rows, viewportRows));
+
+        int missing = rows - pool.getRecycledViewCount(VIEW_TYPE_ROW) - sInflating;
+        if (missing <= 0) {
+            return;
+        }
+        Log.d(TAG, "prewarm: inflating " + missing + " row(s)");
+        AsyncLayoutInflater inflater = new AsyncLayoutInflater(context);
+        for (int i = 0; i < missing; i++) {
+            sInflating++;
+            inflater.inflate(R.layout.sku_details_row, recyclerView,
+                    new AsyncLayoutInflater.OnInflateFinishedListener() {
+                        @Override
+                        public void onInflateFinished(View view, int resid, ViewGroup parent) {
+                            if (pool != sPool) {
+                                // The activity changed or was destroyed meanwhile
+                                return;
+                            }
+                            sInflating--;
+                            // Going through the adapter gives the holder its view type
+                            sInflatedRow = view;
+                            RowViewHolder holder = adapter.createViewHolder(parent, VIEW_TYPE_ROW);
+                            sInflatedRow = null;
+                            pool.putRecycledView(holder);
+                        }
+                    });
+        }
+    }
+
+    /**
+     * @return the row inflated ahead of time that is being turned into a holder, if any
+     */
+    @MainThread
+    static View takeInflatedRow() {
+        View row = sInflatedRow;
+        sInflatedRow = null;
+        return row;
+    }
+}
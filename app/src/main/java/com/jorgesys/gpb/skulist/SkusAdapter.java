@@ -22,11 +22,14 @@ import android.view.ViewGroup;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.jorgesys.gpb.R;
-import com.jorgesys.gpb.billing.BillingProvider;
+import com.jorgesys.gpb.billing.BillingManager;
 import com.jorgesys.gpb.skulist.row.RowViewHolder;
 import com.jorgesys.gpb.skulist.row.SkuRowData;
 
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Adapter for a RecyclerView that shows SKU details for the app.
@@ -38,10 +41,13 @@ import java.util.List;
 public class SkusAdapter extends RecyclerView.Adapter<RowViewHolder>
         implements RowViewHolder.OnButtonClickListener {
     private List<SkuRowData> mListData;
-    private BillingProvider mBillingProvider;
+    // Pooled rows outlive the fragment, so this must not be the activity
+    private BillingManager mBillingManager;
+    // SKUs with a purchase flow running, their buttons are disabled
+    private Set<String> mRunningFlows = Collections.emptySet();
 
-    public SkusAdapter(BillingProvider billingProvider) {
-        mBillingProvider = billingProvider;
+    public SkusAdapter(BillingManager billingManager) {
+        mBillingManager = billingManager;
     }
 
     void updateData(List<SkuRowData> data) {
@@ -49,32 +55,43 @@ public class SkusAdapter extends RecyclerView.Adapter<RowViewHolder>
         notifyDataSetChanged();
     }
 
+    /**
+     * Updates the SKUs with a purchase flow running, rebinding only the rows that changed
+     */
+    void setRunningFlows(Set<String> runningFlows) {
+        Set<String> previous = mRunningFlows;
+        mRunningFlows = runningFlows;
+        for (int i = 0; i < getItemCount(); i++) {
+            String sku = mListData.get(i).getSku();
+            if (previous.contains(sku) != runningFlows.contains(sku)) {
+                notifyItemChanged(i);
+            }
+        }
+    }
+
     @Override
     public RowViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
-        View item = LayoutInflater.from(parent.getContext())
-                .inflate(R.layout.sku_details_row, parent, false);
-        return new RowViewHolder(item, this);
+        // Rows are normally inflated ahead of time by SkuRowPool, this is the fallback
+        View item = SkuRowPool.takeInflatedRow();
+        if (item == null) {
+            item = LayoutInflater.from(parent.getContext())
+                    .inflate(R.layout.sku_details_row, parent, false);
+        }
+        return new RowViewHolder(item);
     }
 
     @Override
     public void onBindViewHolder(RowViewHolder holder, int position) {
+        // Pooled rows may have been created by another adapter
+        holder.setOnButtonClickListener(this);
         SkuRowData data = getData(position);
         if (data != null) {
             holder.title.setText(data.getTitle());
             holder.description.setText(data.getDescription());
             holder.price.setText(data.getPrice());
-            holder.button.setEnabled(true);
-        }
-        switch (data.getSku()) {
-            case "gas":
-                holder.skuIcon.setImageResource(R.drawable.gas_icon);
-                break;
-            case "premium":
-                holder.skuIcon.setImageResource(R.drawable.premium_icon);
-                break;
-            case "subscription_gold":
-                holder.skuIcon.setImageResource(R.drawable.gold_icon);
-                break;
+            holder.button.setEnabled(!mRunningFlows.contains(data.getSku()));
+            // Decoded off the main thread and cached, see SkuIconLoader
+            SkuIconLoader.get(holder.itemView.getContext()).load(data.getSku(), holder.skuIcon);
         }
     }
 
@@ -85,8 +102,19 @@ public class SkusAdapter extends RecyclerView.Adapter<RowViewHolder>
 
     @Override
     public void onButtonClicked(int position) {
+        // The row may be on its way out of the list
+        if (position == RecyclerView.NO_POSITION) {
+            return;
+        }
         SkuRowData data = getData(position);
-        mBillingProvider.getBillingManager().startPurchaseFlow(/*data.getSku(), data.getBillingType()*/data.getSkuDetails());
+        if (data == null || mRunningFlows.contains(data.getSku())) {
+            return;
+        }
+        // Disabled right away, BillingManager confirms through getPurchaseFlows()
+        Set<String> runningFlows = new HashSet<>(mRunningFlows);
+        runningFlows.add(data.getSku());
+        setRunningFlows(runningFlows);
+        mBillingManager.startPurchaseFlow(/*data.getSku(), data.getBillingType()*/data.getSkuDetails());
 
     }
 
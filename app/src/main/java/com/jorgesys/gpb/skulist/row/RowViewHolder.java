@@ -31,6 +31,7 @@ public final class RowViewHolder extends RecyclerView.ViewHolder {
     public TextView title, description, price;
     public Button button;
     public ImageView skuIcon;
+    private OnButtonClickListener mClickListener;
 
     /**
      * Handler for a button click on particular row
@@ -40,6 +41,15 @@ public final class RowViewHolder extends RecyclerView.ViewHolder {
     }
 
     public RowViewHolder(final View itemView, final OnButtonClickListener clickListener) {
+        this(itemView);
+        mClickListener = clickListener;
+    }
+
+    /**
+     * Creates a holder without a click listener yet, e.g. for a pooled row shared between
+     * adapters, see {@link #setOnButtonClickListener(OnButtonClickListener)}
+     */
+    public RowViewHolder(final View itemView) {
         super(itemView);
         title = (TextView) itemView.findViewById(R.id.title);
         price = (TextView) itemView.findViewById(R.id.price);
@@ -50,9 +60,15 @@ public final class RowViewHolder extends RecyclerView.ViewHolder {
             button.setOnClickListener(new View.OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    clickListener.onButtonClicked(getAdapterPosition());
+                    if (mClickListener != null) {
+                        mClickListener.onButtonClicked(getAdapterPosition());
+                    }
                 }
             });
         }
     }
+
+    public void setOnButtonClickListener(OnButtonClickListener clickListener) {
+        mClickListener = clickListener;
+    }
 }
@@ -19,15 +19,22 @@ import com.android.billingclient.api.SkuDetails;
 
 /**
  * A model for SkusAdapter's row which holds all the data to render UI
+ * <p>
+ * The price is kept both as the display string, formatted once when the row is created, and as
+ * micros of its currency for sorting and arithmetic.
  */
 public class SkuRowData {
-    private final String sku, title, price, description, billingType;
+    private final String sku, title, price, priceCurrencyCode, description, billingType;
+    private final long priceAmountMicros;
     private final SkuDetails skuDetails;
 
-    public SkuRowData(String sku, String title, String price, String description, String type, SkuDetails skuDetails) {
+    public SkuRowData(String sku, String title, String price, long priceAmountMicros, String priceCurrencyCode,
+                      String description, String type, SkuDetails skuDetails) {
         this.sku = sku;
         this.title = title;
         this.price = price;
+        this.priceAmountMicros = priceAmountMicros;
+        this.priceCurrencyCode = priceCurrencyCode;
         this.description = description;
         this.billingType = type;
         this.skuDetails = skuDetails;
@@ -41,10 +48,27 @@ public class SkuRowData {
         return title;
     }
 
+    /**
+     * @return the price ready to display
+     */
     public String getPrice() {
         return price;
     }
 
+    /**
+     * @return the price in millionths of {@link #getPriceCurrencyCode()}, e.g. 990000 for 0.99
+     */
+    public long getPriceAmountMicros() {
+        return priceAmountMicros;
+    }
+
+    /**
+     * @return ISO 4217 code of the price's currency
+     */
+    public String getPriceCurrencyCode() {
+        return priceCurrencyCode;
+    }
+
     public String getDescription() {
         return description;
     }
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Allocation test of the purchase update path: once warmed up, bursts of updates that re-deliver
+ * purchases BillingManager already knows, acknowledged or pending, must not allocate per update,
+ * neither on the thread Play calls back on nor on the state executor. Both are the test thread
+ * here, whose allocations are counted by the JVM. Acknowledging new purchases is not covered.
+ */
+public class BillingAllocationTest {
+    private static final long SEED = 0xa110c_b111L;
+    private static final int ACKNOWLEDGED_PURCHASES = 8;
+    private static final int PENDING_PURCHASES = 2;
+    private static final int BURST_SIZE = 50;
+    // Enough for the JIT to settle, compiling the path allocates a few bytes along the way
+    private static final int WARMUP_BURSTS = 200;
+    private static final int MEASURED_BURSTS = 200;
+    // Distinct update lists, delivered round robin
+    private static final int UPDATE_LISTS = 256;
+    // JIT and TLAB refills may allocate a little along the way, an allocation per update would
+    // take at least 16 bytes times the number of updates
+    private static final long MAX_ALLOCATED_BYTES = 1024;
+
+    private final SimulatedLooper mLooper = new SimulatedLooper();
+    private final SimulatedBillingService mService = new SimulatedBillingService(mLooper, new Random(SEED));
+    private final BillingResult mOk = BillingResult.newBuilder()
+            .setResponseCode(BillingClient.BillingResponseCode.OK)
+            .build();
+
+    @Test
+    public void unchangedPurchaseUpdates_doNotAllocate() {
+        Assume.assumeTrue("allocation counting not supported", BillingSoakTest.allocatedBytes() >= 0);
+
+        Activity activity = InMemorySharedPreferences.newActivity(InMemorySharedPreferences.newApplication());
+        BillingManager manager = new BillingManager(activity,
+                new BillingExecutors(mLooper, mLooper, mLooper), mService.clientFactory());
+        manager.attachActivity(activity);
+        manager.onResume();
+        while (countOwned(false) < ACKNOWLEDGED_PURCHASES) {
+            mService.purchaseOutsideApp(false);
+        }
+        while (countOwned(true) < PENDING_PURCHASES) {
+            mService.purchaseOutsideApp(true);
+        }
+        // Connected, every purchase reported and the completed ones acknowledged
+        mLooper.runFor(60 * 1000L);
+        assertEquals(ACKNOWLEDGED_PURCHASES + PENDING_PURCHASES, manager.getPurchases().size());
+
+        // Play parses every update into new objects, so each one gets its own
+        List<List<Purchase>> updates = new ArrayList<>();
+        for (int i = 0; i < UPDATE_LISTS; i++) {
+            updates.add(ownedPurchases());
+        }
+        int next = 0;
+        for (int i = 0; i < WARMUP_BURSTS; i++) {
+            next = deliverBurst(manager, updates, next);
+        }
+
+        long before = BillingSoakTest.allocatedBytes();
+        for (int i = 0; i < MEASURED_BURSTS; i++) {
+            next = deliverBurst(manager, updates, next);
+        }
+        long allocated = BillingSoakTest.allocatedBytes() - before;
+
+        assertTrue("bytes allocated by " + MEASURED_BURSTS * BURST_SIZE + " updates: " + allocated,
+                allocated <= MAX_ALLOCATED_BYTES);
+        assertEquals(ACKNOWLEDGED_PURCHASES + PENDING_PURCHASES, manager.getPurchases().size());
+    }
+
+    /**
+     * Delivers a burst of updates, as Play does on the main thread, then lets the state executor
+     * drain them
+     */
+    private int deliverBurst(BillingManager manager, List<List<Purchase>> updates, int next) {
+        for (int i = 0; i < BURST_SIZE; i++) {
+            manager.onPurchasesUpdated(mOk, updates.get(next));
+            next = (next + 1) % updates.size();
+        }
+        mLooper.runFor(0);
+        return next;
+    }
+
+    private List<Purchase> ownedPurchases() {
+        List<Purchase> purchases = new ArrayList<>();
+        for (SimulatedBillingService.SimPurchase purchase : mService.getLedger()) {
+            if (!purchase.mConsumed) {
+                purchases.add(purchase.toPurchase());
+            }
+        }
+        return purchases;
+    }
+
+    private int countOwned(boolean pending) {
+        int count = 0;
+        for (SimulatedBillingService.SimPurchase purchase : mService.getLedger()) {
+            if (!purchase.mConsumed && purchase.mPending == pending) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
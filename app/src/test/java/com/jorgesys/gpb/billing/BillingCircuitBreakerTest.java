@@ -0,0 +1,123 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of the circuit breaker through BillingManager: what opens it, and that it always lets a
+ * probe through again
+ */
+public class BillingCircuitBreakerTest {
+    private static final long SEED = 0xb4ea_c3e4L;
+
+    // LiveData is set from the simulated executors
+    @Rule
+    public final InstantTaskExecutorRule mInstantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final SimulatedLooper mLooper = new SimulatedLooper();
+    private final SimulatedBillingService mService = new SimulatedBillingService(mLooper, new Random(SEED));
+    private final List<BillingResult> mResults = new ArrayList<>();
+    private Activity mActivity;
+    private BillingManager mManager;
+
+    @Before
+    public void setUp() {
+        mActivity = InMemorySharedPreferences.newActivity(InMemorySharedPreferences.newApplication());
+        mManager = new BillingManager(mActivity, new BillingExecutors(mLooper, mLooper, mLooper),
+                mService.clientFactory());
+        mManager.attachActivity(mActivity);
+        mManager.onResume();
+        mLooper.runFor(1000);
+    }
+
+    @After
+    public void tearDown() {
+        mManager.destroy();
+    }
+
+    @Test
+    public void disconnections_openTheBreaker() {
+        querySkuDetails();
+        mLooper.runFor(1000);
+        assertEquals(BillingClient.BillingResponseCode.OK, lastResult().getResponseCode());
+
+        mService.disconnect();
+        mLooper.runFor(0);
+        querySkuDetails();
+        mLooper.runFor(0);
+        assertEquals(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, lastResult().getResponseCode());
+        assertEquals(BillingCircuitBreaker.DEBUG_MESSAGE_OPEN, lastResult().getDebugMessage());
+
+        // The probe reconnects and closes it
+        mLooper.runFor(BillingCircuitBreaker.MAX_OPEN_MS);
+        querySkuDetails();
+        mLooper.runFor(1000);
+        assertEquals(BillingClient.BillingResponseCode.OK, lastResult().getResponseCode());
+    }
+
+    @Test
+    public void probeWithoutActivity_doesNotKeepTheBreakerHalfOpen() {
+        // In background no probe is scheduled, the purchase flow is the first call after the
+        // open time
+        mManager.onPause();
+        mService.disconnect();
+        mLooper.runFor(BillingCircuitBreaker.MAX_OPEN_MS);
+        mManager.detachActivity(mActivity);
+        mManager.startPurchaseFlow(SimulatedBillingService.skuDetails("gas"));
+        mLooper.runFor(1000);
+        assertEquals(Collections.<String>emptySet(), mManager.getPurchaseFlows().getValue());
+        assertEquals(0, mService.getFlowsLaunched());
+
+        querySkuDetails();
+        mLooper.runFor(1000);
+        assertEquals(BillingClient.BillingResponseCode.OK, lastResult().getResponseCode());
+    }
+
+    private void querySkuDetails() {
+        mManager.querySkuDetailsAsync(BillingClient.SkuType.INAPP, Arrays.asList("gas"),
+                new SkuDetailsResponseListener() {
+                    @Override
+                    public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                        mResults.add(billingResult);
+                    }
+                });
+    }
+
+    private BillingResult lastResult() {
+        return mResults.get(mResults.size() - 1);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Leak regression test of the billing layer: the activity is recreated over and over, as on
+ * rotation, each time destroyed while Play Billing calls are still in flight. Once destroyed an
+ * activity must become unreachable, even though the late callbacks still reach its
+ * BillingManager. The calls cut short by destroy() still answer their callers, which may outlive
+ * the activity, e.g. a catalog kept in a ViewModel.
+ */
+public class BillingLeakTest {
+    private static final long SEED = 0x1eaf_b111L;
+    private static final int ROTATIONS = 200;
+    // Stands for the view tree of an activity
+    private static final int ACTIVITY_BYTES = 256 * 1024;
+    private static final int MAX_GC_ATTEMPTS = 20;
+
+    // LiveData is set from the simulated executors
+    @Rule
+    public final InstantTaskExecutorRule mInstantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final SimulatedLooper mLooper = new SimulatedLooper();
+    private final Random mRandom = new Random(SEED);
+    private final SimulatedBillingService mService = new SimulatedBillingService(mLooper, mRandom);
+    private final BillingExecutors mExecutors = new BillingExecutors(mLooper, mLooper, mLooper);
+    private final Application mApplication = InMemorySharedPreferences.newApplication();
+    // Managers of the destroyed activities, like Play keeps the listeners of its late callbacks
+    private final List<BillingManager> mRetainedManagers = new ArrayList<>();
+    private final List<WeakReference<Activity>> mDestroyedActivities = new ArrayList<>();
+    private final List<BillingResult> mSkuResults = new ArrayList<>();
+
+    @Test
+    public void rotations_doNotRetainDestroyedActivities() {
+        SimulatedBillingService.Faults faults = new SimulatedBillingService.Faults();
+        faults.minLatencyMs = 5;
+        faults.maxLatencyMs = 2000;
+        mService.setFaults(faults);
+
+        for (int i = 0; i < ROTATIONS; i++) {
+            rotate();
+        }
+        // Late callbacks reach the destroyed managers
+        mLooper.runFor(60 * 1000L);
+
+        int reachable = countReachable();
+        assertEquals("destroyed activities still reachable: " + reachable + " of "
+                + mDestroyedActivities.size(), 0, reachable);
+        assertEquals(ROTATIONS, mSkuResults.size());
+    }
+
+    @Test
+    public void destroy_answersTheQueriesInFlightAndAfter() {
+        Activity activity = newActivity(mApplication);
+        BillingManager manager = new BillingManager(activity, mExecutors, mService.clientFactory());
+        manager.onResume();
+        mLooper.runFor(1000);
+
+        querySkuDetails(manager);
+        manager.destroy();
+        querySkuDetails(manager);
+        mLooper.runFor(1000);
+        assertEquals(2, mSkuResults.size());
+        for (BillingResult result : mSkuResults) {
+            assertEquals(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED, result.getResponseCode());
+            assertEquals(BillingManager.DEBUG_MESSAGE_DESTROYED, result.getDebugMessage());
+        }
+    }
+
+    /**
+     * Creates an activity as GamePlayActivity does, starts a purchase flow and a SKU query, and
+     * destroys it before their results arrive
+     */
+    private void rotate() {
+        Activity activity = newActivity(mApplication);
+        BillingManager manager = new BillingManager(activity, mExecutors, mService.clientFactory());
+        manager.attachActivity(activity);
+        manager.onResume();
+        mLooper.runFor(mRandom.nextInt(100));
+
+        manager.startPurchaseFlow(SimulatedBillingService.skuDetails("gas"));
+        querySkuDetails(manager);
+        mService.purchaseOutsideApp(false);
+        mLooper.runFor(mRandom.nextInt(100));
+
+        manager.onPause();
+        manager.detachActivity(activity);
+        manager.destroy();
+        mRetainedManagers.add(manager);
+        mDestroyedActivities.add(new WeakReference<>(activity));
+    }
+
+    private void querySkuDetails(BillingManager manager) {
+        manager.querySkuDetailsAsync(BillingClient.SkuType.INAPP, Arrays.asList("gas", "premium"),
+                new SkuDetailsResponseListener() {
+                    @Override
+                    public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                        mSkuResults.add(billingResult);
+                    }
+                });
+    }
+
+    /**
+     * An activity of the application with the weight of a view tree
+     */
+    private static Activity newActivity(final Application application) {
+        return new Activity() {
+            private final byte[] mViews = new byte[ACTIVITY_BYTES];
+
+            @Override
+            public SharedPreferences getSharedPreferences(String name, int mode) {
+                return application.getSharedPreferences(name, mode);
+            }
+
+            @Override
+            public Context getApplicationContext() {
+                return application;
+            }
+        };
+    }
+
+    private int countReachable() {
+        int reachable = 0;
+        for (int attempt = 0; attempt < MAX_GC_ATTEMPTS; attempt++) {
+            collectGarbage();
+            reachable = 0;
+            for (WeakReference<Activity> activity : mDestroyedActivities) {
+                if (activity.get() != null) {
+                    reachable++;
+                }
+            }
+            if (reachable == 0) {
+                break;
+            }
+        }
+        return reachable;
+    }
+
+    private static void collectGarbage() {
+        System.gc();
+        System.runFinalization();
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
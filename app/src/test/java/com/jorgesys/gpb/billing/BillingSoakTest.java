@@ -0,0 +1,387 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+import android.app.Application;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Soak test of BillingManager against {@link SimulatedBillingService}.
+ * <p>
+ * Tens of thousands of purchase updates, subscriptions subscribed to and expiring, SKU queries,
+ * purchase flows, disconnects and failed acknowledgements are pushed through one manager on a
+ * virtual clock, then the app is restarted with the faults off and the final state is checked:
+ * every completed purchase acknowledged exactly once, every query answered, no flow left
+ * running, and the manager agreeing with the service on what is owned. The run is fully
+ * determined by its seed.
+ * <p>
+ * Latencies are in virtual time and therefore exact, the BUDGET_* constants are the budget a
+ * billing change has to stay within before release. Throughput and allocations are measured on
+ * the host, which makes them vary from run to run: they are printed with the rest of the report
+ * on every run, for comparing before and after a change, but not checked.
+ */
+public class BillingSoakTest {
+    private static final long SEED = 0x5eed_b111L;
+    private static final int SOAK_EVENTS = 40000;
+
+    // Performance budget
+    private static final long BUDGET_SKU_QUERY_P50_MS = 250;
+    private static final long BUDGET_SKU_QUERY_P99_MS = 1000;
+    private static final long BUDGET_ACKNOWLEDGE_P50_MS = 500;
+    // Tasks left queued once everything has settled, more means something keeps rescheduling
+    private static final int BUDGET_MAX_IDLE_TASKS = 16;
+    // Looked up once, the lookup itself allocates
+    private static final ThreadMXBean THREAD_BEAN = ManagementFactory.getThreadMXBean();
+
+    @Rule
+    public InstantTaskExecutorRule mInstantTaskExecutor = new InstantTaskExecutorRule();
+
+    @Test
+    public void soak_keepsInvariantsWithinBudget() {
+        SoakReport report = new SoakRun(SEED, SOAK_EVENTS).run();
+        System.out.println(report);
+
+        // No lost or double acknowledgements
+        assertEquals("purchases left unacknowledged by the session", 0, report.mUnacknowledgedBeforeRestart);
+        assertEquals("purchases never acknowledged", 0, report.mUnacknowledged);
+        assertEquals("purchases acknowledged twice", 0, report.mDoubleAcknowledged);
+        // Every request gets exactly one answer, and every flow ends
+        assertEquals("SKU queries without an answer", report.mSkuQueries, report.mSkuAnswers);
+        assertEquals("purchase flows left running", 0, report.mFlowsLeftRunning);
+        assertTrue("BillingManager and Play disagree on the owned purchases\n" + report, report.mOwnedInSync);
+        assertTrue("no subscription went through a whole life\n" + report, report.mExpiredSubscriptions > 0);
+        assertTrue("tasks still queued when idle: " + report.mIdleTasks, report.mIdleTasks <= BUDGET_MAX_IDLE_TASKS);
+
+        assertTrue("SKU query p50 " + report.mSkuQueryP50, report.mSkuQueryP50 <= BUDGET_SKU_QUERY_P50_MS);
+        assertTrue("SKU query p99 " + report.mSkuQueryP99, report.mSkuQueryP99 <= BUDGET_SKU_QUERY_P99_MS);
+        assertTrue("SKU query max " + report.mSkuQueryMax, report.mSkuQueryMax <= BillingManager.OPERATION_TIMEOUT_MS);
+        assertTrue("acknowledgement p50 " + report.mAcknowledgeP50, report.mAcknowledgeP50 <= BUDGET_ACKNOWLEDGE_P50_MS);
+    }
+
+    @Test
+    public void soak_isDeterministic() {
+        SoakReport first = new SoakRun(SEED, SOAK_EVENTS / 10).run();
+        SoakReport second = new SoakRun(SEED, SOAK_EVENTS / 10).run();
+        assertEquals(first.fingerprint(), second.fingerprint());
+    }
+
+    /**
+     * One soak run, from a seed
+     */
+    private static final class SoakRun {
+        private final int mEvents;
+        private final Random mRandom;
+        private final SimulatedLooper mLooper = new SimulatedLooper();
+        private final SimulatedBillingService mService;
+        private final BillingExecutors mExecutors;
+        private final Application mApplication = InMemorySharedPreferences.newApplication();
+        private BillingManager mManager;
+        private boolean mForeground;
+
+        private int mSkuQueries;
+        private int mSkuAnswers;
+        private int mSkuFailures;
+        private final long[] mSkuLatencies;
+        private int mPurchaseUpdates;
+
+        SoakRun(long seed, int events) {
+            mEvents = events;
+            mRandom = new Random(seed);
+            mService = new SimulatedBillingService(mLooper, mRandom);
+            mExecutors = new BillingExecutors(mLooper, mLooper, mLooper);
+            mSkuLatencies = new long[events];
+        }
+
+        SoakReport run() {
+            SimulatedBillingService.Faults faults = new SimulatedBillingService.Faults();
+            faults.setupFailure = 0.02;
+            faults.skuQueryFailure = 0.01;
+            faults.acknowledgeFailure = 0.05;
+            faults.minLatencyMs = 5;
+            faults.maxLatencyMs = 200;
+            mService.setFaults(faults);
+            startApp();
+
+            long allocatedBefore = allocatedBytes();
+            long startNanos = System.nanoTime();
+            for (int i = 0; i < mEvents; i++) {
+                mLooper.runFor(mRandom.nextInt(200));
+                nextEvent();
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+            long allocatedAfter = allocatedBytes();
+
+            // Faults off, settle everything, then check what the session left behind
+            SimulatedBillingService.Faults calm = SimulatedBillingService.Faults.none();
+            calm.minLatencyMs = 5;
+            calm.maxLatencyMs = 200;
+            mService.setFaults(calm);
+            mService.settleAllPendingPayments();
+            if (!mForeground) {
+                mManager.onResume();
+            }
+            mLooper.runFor(2 * 60 * 1000L);
+            SoakReport report = new SoakReport();
+            report.mEvents = mEvents;
+            report.mEventsPerSecond = mEvents * 1000000000L / Math.max(1, elapsedNanos);
+            report.mBytesPerEvent = allocatedBefore < 0 ? -1 : (allocatedAfter - allocatedBefore) / mEvents;
+            report.mSkuQueries = mSkuQueries;
+            report.mSkuAnswers = mSkuAnswers;
+            report.mSkuFailures = mSkuFailures;
+            report.mPurchaseUpdates = mPurchaseUpdates;
+            report.mFlowsLeftRunning = mManager.getPurchaseFlows().getValue().size();
+            report.mUnacknowledgedBeforeRestart = countUnacknowledged();
+
+            // Failed acknowledgements are retried on the next start at the latest
+            mManager.destroy();
+            mLooper.runFor(1000);
+            startApp();
+            mLooper.runFor(2 * 60 * 1000L);
+
+            report.mUnacknowledged = countUnacknowledged();
+            for (SimulatedBillingService.SimPurchase purchase : mService.getLedger()) {
+                if (purchase.mAcknowledgements > 1) {
+                    report.mDoubleAcknowledged++;
+                }
+                if (SimulatedBillingService.isSubscription(purchase.mSku) && purchase.mConsumed) {
+                    report.mExpiredSubscriptions++;
+                }
+            }
+            List<String> owned = new ArrayList<>();
+            for (Purchase purchase : mManager.getPurchases()) {
+                owned.add(purchase.getPurchaseToken());
+            }
+            Collections.sort(owned);
+            report.mOwnedInSync = owned.equals(mService.getOwnedTokens());
+            report.mOwnedTokens = owned;
+            mManager.onPause();
+            mLooper.runFor(60 * 1000L);
+            report.mIdleTasks = mLooper.pendingCount();
+
+            long[] skuLatencies = Arrays.copyOf(mSkuLatencies, mSkuAnswers);
+            Arrays.sort(skuLatencies);
+            report.mSkuQueryP50 = percentile(skuLatencies, 0.50);
+            report.mSkuQueryP99 = percentile(skuLatencies, 0.99);
+            report.mSkuQueryMax = percentile(skuLatencies, 1.0);
+            long[] ackLatencies = acknowledgeLatencies();
+            report.mAcknowledgeP50 = percentile(ackLatencies, 0.50);
+            report.mAcknowledgeP99 = percentile(ackLatencies, 0.99);
+            report.mConnections = mService.getConnections();
+            report.mDisconnects = mService.getDisconnects();
+            report.mFlowsLaunched = mService.getFlowsLaunched();
+            report.mAcknowledgeCalls = mService.getAcknowledgeCalls();
+            report.mFailedAcknowledgements = mService.getFailedAcknowledgements();
+            report.mStaleAcknowledgements = mService.getStaleAcknowledgements();
+            report.mTasks = mLooper.executedCount();
+            report.mVirtualMillis = mLooper.uptimeMillis();
+            return report;
+        }
+
+        private void startApp() {
+            Activity activity = InMemorySharedPreferences.newActivity(mApplication);
+            mManager = new BillingManager(activity, mExecutors, mService.clientFactory());
+            mManager.attachActivity(activity);
+            mManager.onResume();
+            mForeground = true;
+        }
+
+        private void nextEvent() {
+            int event = mRandom.nextInt(100);
+            if (event < 25) {
+                mPurchaseUpdates++;
+                mService.purchaseOutsideApp(mRandom.nextInt(5) == 0);
+            } else if (event < 35) {
+                mService.settlePendingPayment(mRandom.nextBoolean());
+            } else if (event < 45) {
+                mService.consumeAcknowledged();
+            } else if (event < 70) {
+                querySkuDetails(mRandom.nextBoolean() ? BillingClient.SkuType.INAPP : BillingClient.SkuType.SUBS);
+            } else if (event < 85) {
+                String[] skus = mRandom.nextInt(10) == 0 ? SimulatedBillingService.SUBS_SKUS
+                        : SimulatedBillingService.INAPP_SKUS;
+                mManager.startPurchaseFlow(SimulatedBillingService.skuDetails(skus[mRandom.nextInt(skus.length)]));
+            } else if (event < 86) {
+                mService.disconnect();
+            } else if (event < 94) {
+                if (mForeground) {
+                    mManager.onPause();
+                } else {
+                    mManager.onResume();
+                }
+                mForeground = !mForeground;
+            } else if (event < 95) {
+                mManager.refreshSubscriptions();
+            } else if (event < 96) {
+                mService.subscribe();
+            } else if (event < 97) {
+                mService.expireSubscription();
+            } else {
+                mManager.syncPurchaseHistory(false, null);
+            }
+        }
+
+        private void querySkuDetails(String skuType) {
+            final long issuedAt = mLooper.uptimeMillis();
+            mSkuQueries++;
+            String[] skus = BillingClient.SkuType.SUBS.equals(skuType) ? SimulatedBillingService.SUBS_SKUS
+                    : SimulatedBillingService.INAPP_SKUS;
+            mManager.querySkuDetailsAsync(skuType, Arrays.asList(skus),
+                    new SkuDetailsResponseListener() {
+                        @Override
+                        public void onSkuDetailsResponse(BillingResult billingResult, List<SkuDetails> skuDetailsList) {
+                            mSkuLatencies[mSkuAnswers++] = mLooper.uptimeMillis() - issuedAt;
+                            if (billingResult.getResponseCode() != BillingClient.BillingResponseCode.OK) {
+                                mSkuFailures++;
+                            }
+                        }
+                    });
+        }
+
+        private int countUnacknowledged() {
+            int count = 0;
+            for (SimulatedBillingService.SimPurchase purchase : mService.getLedger()) {
+                if (!purchase.mConsumed && !purchase.mPending && purchase.mAcknowledgements == 0) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private long[] acknowledgeLatencies() {
+            List<SimulatedBillingService.SimPurchase> ledger = mService.getLedger();
+            long[] latencies = new long[ledger.size()];
+            int count = 0;
+            for (SimulatedBillingService.SimPurchase purchase : ledger) {
+                if (purchase.mAcknowledgedAt >= 0) {
+                    latencies[count++] = purchase.mAcknowledgedAt - purchase.mPurchasedAt;
+                }
+            }
+            latencies = Arrays.copyOf(latencies, count);
+            Arrays.sort(latencies);
+            return latencies;
+        }
+    }
+
+    private static final class SoakReport {
+        int mEvents;
+        int mPurchaseUpdates;
+        int mSkuQueries;
+        int mSkuAnswers;
+        int mSkuFailures;
+        int mFlowsLaunched;
+        int mFlowsLeftRunning;
+        int mConnections;
+        int mDisconnects;
+        int mAcknowledgeCalls;
+        int mFailedAcknowledgements;
+        int mStaleAcknowledgements;
+        int mUnacknowledgedBeforeRestart;
+        int mUnacknowledged;
+        int mDoubleAcknowledged;
+        int mExpiredSubscriptions;
+        boolean mOwnedInSync;
+        List<String> mOwnedTokens;
+        int mIdleTasks;
+        long mSkuQueryP50;
+        long mSkuQueryP99;
+        long mSkuQueryMax;
+        long mAcknowledgeP50;
+        long mAcknowledgeP99;
+        long mTasks;
+        long mVirtualMillis;
+        // Measured on the host, not part of the fingerprint
+        long mEventsPerSecond;
+        long mBytesPerEvent;
+
+        /**
+         * Everything that depends only on the seed, i.e. not host timings
+         */
+        String fingerprint() {
+            return mEvents + "/" + mPurchaseUpdates + "/" + mSkuQueries + "/" + mSkuAnswers + "/" + mSkuFailures
+                    + "/" + mFlowsLaunched + "/" + mConnections + "/" + mDisconnects + "/" + mAcknowledgeCalls
+                    + "/" + mFailedAcknowledgements + "/" + mStaleAcknowledgements + "/" + mSkuQueryP50
+                    + "/" + mSkuQueryP99 + "/" + mAcknowledgeP50 + "/" + mAcknowledgeP99 + "/" + mTasks
+                    + "/" + mVirtualMillis + "/" + mExpiredSubscriptions + "/" + mOwnedTokens;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "Billing soak: %d events over %ds virtual, %d tasks%n"
+                            + "  SKU queries: %d, %d failed, latency p50 %dms p99 %dms max %dms%n"
+                            + "  purchases: %d updates, %d flows launched, %d left running%n"
+                            + "  connection: %d setups, %d disconnects%n"
+                            + "  acknowledgements: %d calls, %d failed, %d stale, latency p50 %dms p99 %dms%n"
+                            + "  subscriptions expired: %d%n"
+                            + "  unacknowledged: %d before restart, %d after; acknowledged twice: %d%n"
+                            + "  owned in sync: %b, tasks left idle: %d%n"
+                            + "  throughput: %d events/s, %d bytes allocated/event",
+                    mEvents, mVirtualMillis / 1000, mTasks,
+                    mSkuQueries, mSkuFailures, mSkuQueryP50, mSkuQueryP99, mSkuQueryMax,
+                    mPurchaseUpdates, mFlowsLaunched, mFlowsLeftRunning,
+                    mConnections, mDisconnects,
+                    mAcknowledgeCalls, mFailedAcknowledgements, mStaleAcknowledgements, mAcknowledgeP50, mAcknowledgeP99,
+                    mExpiredSubscriptions,
+                    mUnacknowledgedBeforeRestart, mUnacknowledged, mDoubleAcknowledged,
+                    mOwnedInSync, mIdleTasks,
+                    mEventsPerSecond, mBytesPerEvent);
+        }
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * @return bytes allocated so far by the current thread, -1 if the JVM cannot tell
+     */
+    static long allocatedBytes() {
+        ThreadMXBean bean = THREAD_BEAN;
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the entitlement snapshot: what the writer publishes is what readers of another mapping
+ * of the file see, and a reader racing the writer only ever sees whole snapshots.
+ */
+public class EntitlementSnapshotTest {
+    private static final int RACE_READS = 20000;
+    // Between two publishes of the racing writer, BillingManager publishes far less often
+    private static final long WRITER_PAUSE_NS = 1000;
+    private static final int TIMED_READS = 1000000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("entitlements", ".snapshot");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void reader_seesPublishedEntitlements() throws IOException {
+        EntitlementSnapshot.Reader reader = new EntitlementSnapshot.Reader(mFile);
+        assertEquals(EntitlementSnapshot.STATE_UNKNOWN, reader.getState("gas"));
+        assertNull(reader.read());
+
+        EntitlementSnapshot.Writer writer = EntitlementSnapshot.Writer.open(mFile);
+        // Mapped, nothing published yet
+        assertEquals(EntitlementSnapshot.STATE_UNKNOWN, reader.getState("gas"));
+
+        writer.publish(Arrays.asList(purchase("gas", "t1", true, true),
+                purchase("premium", "t2", true, false),
+                purchase("premium", "t3", false, false)));
+        assertEquals(EntitlementSnapshot.STATE_PURCHASED, reader.getState("gas"));
+        // A completed purchase wins over a pending one
+        assertEquals(EntitlementSnapshot.STATE_PURCHASED, reader.getState("premium"));
+        assertEquals(EntitlementSnapshot.STATE_NONE, reader.getState("gold_monthly"));
+
+        writer.publish(Collections.singletonList(purchase("gold_monthly", "t4", false, false)));
+        EntitlementSnapshot snapshot = reader.read();
+        assertNotNull(snapshot);
+        assertEquals(2, snapshot.getVersion());
+        assertEquals(1, snapshot.getEntitlements().size());
+        EntitlementSnapshot.Entitlement entitlement = snapshot.getEntitlements().get(0);
+        assertEquals("gold_monthly", entitlement.getSku());
+        assertEquals(EntitlementSnapshot.STATE_PENDING, entitlement.getState());
+        assertFalse(entitlement.isAcknowledged());
+        assertEquals(EntitlementSnapshot.STATE_NONE, reader.getState("gas"));
+    }
+
+    @Test
+    public void reader_racingWriter_seesWholeSnapshots() throws Exception {
+        final EntitlementSnapshot.Writer writer = EntitlementSnapshot.Writer.open(mFile);
+        // Both lists have the same layout, a torn read would mix their SKUs
+        final List<Purchase> odd = new ArrayList<>();
+        final List<Purchase> even = new ArrayList<>();
+        for (int i = 0; i < EntitlementSnapshot.MAX_ENTRIES; i++) {
+            odd.add(purchase("odd_" + i, "o" + i, true, true));
+            even.add(purchase("even_" + i, "e" + i, true, true));
+        }
+        writer.publish(even);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (long i = 0; !done.get(); i++) {
+                    writer.publish(i % 2 == 0 ? odd : even);
+                    LockSupport.parkNanos(WRITER_PAUSE_NS);
+                }
+            }
+        });
+        writerThread.start();
+
+        EntitlementSnapshot.Reader reader = new EntitlementSnapshot.Reader(mFile);
+        long lastVersion = 0;
+        int snapshots = 0;
+        try {
+            for (int i = 0; i < RACE_READS; i++) {
+                EntitlementSnapshot snapshot = reader.read();
+                if (snapshot == null) {
+                    continue;
+                }
+                snapshots++;
+                assertTrue(snapshot.getVersion() >= lastVersion);
+                lastVersion = snapshot.getVersion();
+                List<EntitlementSnapshot.Entitlement> entitlements = snapshot.getEntitlements();
+                assertEquals(EntitlementSnapshot.MAX_ENTRIES, entitlements.size());
+                String prefix = entitlements.get(0).getSku().startsWith("odd_") ? "odd_" : "even_";
+                for (int e = 0; e < entitlements.size(); e++) {
+                    assertEquals(prefix + e, entitlements.get(e).getSku());
+                }
+            }
+        } finally {
+            done.set(true);
+            writerThread.join();
+        }
+        assertTrue("no consistent snapshot read", snapshots > 0);
+    }
+
+    @Test
+    public void getState_takesMicroseconds() throws IOException {
+        List<Purchase> owned = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            owned.add(purchase("sku_" + i, "t" + i, true, true));
+        }
+        EntitlementSnapshot.Writer.open(mFile).publish(owned);
+        EntitlementSnapshot.Reader reader = new EntitlementSnapshot.Reader(mFile);
+
+        int purchased = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < TIMED_READS; i++) {
+            if (reader.isPurchased("sku_9")) {
+                purchased++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.printf("Entitlement check: %d ns%n", elapsed / TIMED_READS);
+        assertEquals(TIMED_READS, purchased);
+        assertTrue("entitlement check took " + elapsed / TIMED_READS + " ns",
+                elapsed / TIMED_READS < 10 * 1000);
+    }
+
+    private static Purchase purchase(String sku, String token, boolean purchased, boolean acknowledged) {
+        return SimulatedBillingService.purchase(sku, token, 1500000000000L, !purchased, acknowledged);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the main-thread watchdog, with the test thread standing for the main thread
+ */
+public class MainThreadWatchdogTest {
+    private static final long BUDGET_MS = 20;
+    private static final int CALLS = 10000;
+
+    @Before
+    public void setUp() {
+        MainThreadWatchdog.install(Thread.currentThread(), BUDGET_MS);
+    }
+
+    @After
+    public void tearDown() {
+        MainThreadWatchdog.uninstall();
+    }
+
+    @Test
+    public void callOverBudget_isReportedWithTheBlockingStack() throws InterruptedException {
+        MainThreadWatchdog.begin("getPurchases");
+        try {
+            blockMainThread();
+        } finally {
+            MainThreadWatchdog.end();
+        }
+
+        List<MainThreadWatchdog.Violation> violations = MainThreadWatchdog.getViolations();
+        assertEquals(1, violations.size());
+        MainThreadWatchdog.Violation violation = violations.get(0);
+        assertEquals("getPurchases", violation.getName());
+        assertTrue(violation.getDurationMs() >= 5 * BUDGET_MS);
+        // Sampled while blocked, not at the end of the call
+        assertTrue(violation.isSampled());
+        boolean blockingFrame = false;
+        for (StackTraceElement element : violation.getStack()) {
+            blockingFrame |= element.getMethodName().equals("blockMainThread");
+        }
+        assertTrue("blocking frame not in the stack", blockingFrame);
+        int[] histogram = MainThreadWatchdog.getHistogram();
+        for (int i = 0; i < MainThreadWatchdog.BUCKET_LIMITS_MS.length; i++) {
+            if (MainThreadWatchdog.BUCKET_LIMITS_MS[i] <= BUDGET_MS) {
+                assertEquals(0, histogram[i]);
+            }
+        }
+        assertEquals(1, total(histogram));
+    }
+
+    @Test
+    public void nestedAndOtherThreadCalls_areNotCountedTwice() throws InterruptedException {
+        MainThreadWatchdog.begin("onResume");
+        try {
+            MainThreadWatchdog.begin("getSkus");
+            MainThreadWatchdog.end();
+        } finally {
+            MainThreadWatchdog.end();
+        }
+        Thread other = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                MainThreadWatchdog.begin("getPurchases");
+                try {
+                    Thread.sleep(2 * BUDGET_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    MainThreadWatchdog.end();
+                }
+            }
+        });
+        other.start();
+        other.join();
+        // Ends without a begin, e.g. installed in between, are ignored
+        MainThreadWatchdog.end();
+
+        assertEquals(1, total(MainThreadWatchdog.getHistogram()));
+        assertTrue(MainThreadWatchdog.getViolations().isEmpty());
+    }
+
+    @Test
+    public void callsWithinBudget_doNotAllocate() {
+        Assume.assumeTrue("allocation counting not supported", BillingSoakTest.allocatedBytes() >= 0);
+        for (int i = 0; i < CALLS; i++) {
+            MainThreadWatchdog.begin("onPurchasesUpdated");
+            MainThreadWatchdog.end();
+        }
+
+        long before = BillingSoakTest.allocatedBytes();
+        for (int i = 0; i < CALLS; i++) {
+            MainThreadWatchdog.begin("onPurchasesUpdated");
+            MainThreadWatchdog.end();
+        }
+        assertEquals(0, BillingSoakTest.allocatedBytes() - before);
+        assertEquals(MainThreadWatchdog.WINDOW, MainThreadWatchdog.getHistogram()[0]);
+    }
+
+    @Test
+    public void betweenCalls_watcherIsParked() throws InterruptedException {
+        Thread watcher = null;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            // The watchers of the previous tests are interrupted
+            if (thread.getName().equals("BillingWatchdog") && thread.isAlive() && !thread.isInterrupted()) {
+                watcher = thread;
+            }
+        }
+        assertTrue("watcher thread not found", watcher != null);
+        Thread.sleep(2 * BUDGET_MS);
+        // Parked without a timeout, not polling
+        assertEquals(Thread.State.WAITING, watcher.getState());
+
+        MainThreadWatchdog.begin("getPurchases");
+        MainThreadWatchdog.end();
+        // Wakes up once, at the budget of the call that ended, then waits for the next one
+        Thread.sleep(3 * BUDGET_MS);
+        assertEquals(Thread.State.WAITING, watcher.getState());
+    }
+
+    private static int total(int[] histogram) {
+        int total = 0;
+        for (int count : histogram) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static void blockMainThread() throws InterruptedException {
+        Thread.sleep(5 * BUDGET_MS);
+    }
+}
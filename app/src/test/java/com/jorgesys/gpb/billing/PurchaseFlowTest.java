@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of the single-flight purchase flows: which updates end them, and that a flow whose
+ * result never comes is released
+ */
+public class PurchaseFlowTest {
+    private static final long SEED = 0xf10e_b111L;
+    // Longer than the flow deadline, i.e. the result of the flow never comes
+    private static final long LOST_RESULT_LATENCY_MS = 2 * BillingManager.PURCHASE_RESULT_TIMEOUT_MS;
+
+    // LiveData is set from the simulated executors
+    @Rule
+    public final InstantTaskExecutorRule mInstantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private final SimulatedLooper mLooper = new SimulatedLooper();
+    private final SimulatedBillingService mService = new SimulatedBillingService(mLooper, new Random(SEED));
+    private BillingManager mManager;
+
+    @Before
+    public void setUp() {
+        Activity activity = InMemorySharedPreferences.newActivity(InMemorySharedPreferences.newApplication());
+        mManager = new BillingManager(activity, new BillingExecutors(mLooper, mLooper, mLooper),
+                mService.clientFactory());
+        mManager.attachActivity(activity);
+        mManager.onResume();
+        mLooper.runFor(1000);
+
+        SimulatedBillingService.Faults faults = SimulatedBillingService.Faults.none();
+        faults.minLatencyMs = LOST_RESULT_LATENCY_MS;
+        faults.maxLatencyMs = LOST_RESULT_LATENCY_MS;
+        mService.setFaults(faults);
+        mManager.startPurchaseFlow(SimulatedBillingService.skuDetails("gas"));
+        mLooper.runFor(1000);
+        assertEquals(Collections.singleton("gas"), mManager.getPurchaseFlows().getValue());
+    }
+
+    @After
+    public void tearDown() {
+        mManager.destroy();
+    }
+
+    @Test
+    public void updateForAnotherSku_keepsTheFlowRunning() {
+        mService.purchaseOutsideApp("premium", false);
+        mLooper.runFor(1000);
+        assertEquals(Collections.singleton("gas"), mManager.getPurchaseFlows().getValue());
+
+        mService.purchaseOutsideApp("gas", false);
+        mLooper.runFor(1000);
+        assertEquals(Collections.<String>emptySet(), mManager.getPurchaseFlows().getValue());
+    }
+
+    @Test
+    public void lostResult_releasesTheFlowAtTheDeadline() {
+        mLooper.runFor(BillingManager.PURCHASE_RESULT_TIMEOUT_MS - 2000);
+        assertEquals(Collections.singleton("gas"), mManager.getPurchaseFlows().getValue());
+
+        mLooper.runFor(2000);
+        assertEquals(Collections.<String>emptySet(), mManager.getPurchaseFlows().getValue());
+    }
+
+    @Test
+    public void launchAfterTheDeadline_isDropped() {
+        mService.setFaults(SimulatedBillingService.Faults.none());
+        // The main thread only runs when the test lets it
+        SimulatedLooper mainLooper = new SimulatedLooper();
+        Activity activity = InMemorySharedPreferences.newActivity(InMemorySharedPreferences.newApplication());
+        BillingManager manager = new BillingManager(activity, new BillingExecutors(mLooper, mLooper, mainLooper),
+                mService.clientFactory());
+        manager.attachActivity(activity);
+        manager.onResume();
+        mLooper.runFor(1000);
+        int launched = mService.getFlowsLaunched();
+
+        // The main thread is busy until the deadline of the launch passed
+        manager.startPurchaseFlow(SimulatedBillingService.skuDetails("premium"));
+        mLooper.runFor(BillingManager.PURCHASE_FLOW_TIMEOUT_MS + 1000);
+        assertEquals(Collections.<String>emptySet(), manager.getPurchaseFlows().getValue());
+        // Past the open time of the breaker the timeout tripped
+        mLooper.runFor(10 * 1000L);
+        manager.startPurchaseFlow(SimulatedBillingService.skuDetails("premium"));
+        mLooper.runFor(0);
+        assertEquals(Collections.singleton("premium"), manager.getPurchaseFlows().getValue());
+
+        // Only the second tap opens the Play UI
+        mainLooper.runFor(0);
+        mLooper.runFor(0);
+        assertEquals(launched + 1, mService.getFlowsLaunched());
+        manager.destroy();
+    }
+}
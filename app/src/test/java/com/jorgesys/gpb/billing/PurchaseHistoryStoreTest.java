@@ -0,0 +1,100 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Application;
+
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the local purchase history: what a store writes is what the next one, e.g. of the
+ * next launch, reads back, and only new or changed records are written
+ */
+public class PurchaseHistoryStoreTest {
+    private static final long NOW = 1500000000000L;
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+
+    private final Application mApplication = InMemorySharedPreferences.newApplication();
+
+    @Test
+    public void records_persistAcrossInstances() throws JSONException {
+        PurchaseHistoryStore store = new PurchaseHistoryStore(mApplication);
+        assertTrue(store.isSyncDue(BillingClient.SkuType.INAPP, NOW));
+        assertEquals(3, store.applyHistory(BillingClient.SkuType.INAPP, Arrays.asList(
+                record("gas", "t1", NOW - 3 * HOUR_MS),
+                record("premium", "t2", NOW - 2 * HOUR_MS),
+                record("gas", "t3", NOW - HOUR_MS)), NOW));
+        assertEquals(1, store.applyHistory(BillingClient.SkuType.SUBS, Arrays.asList(
+                record("gold_monthly", "t4", NOW - 2 * HOUR_MS)), NOW));
+
+        // As on the next launch
+        store = new PurchaseHistoryStore(mApplication);
+        assertFalse(store.isSyncDue(BillingClient.SkuType.INAPP, NOW + HOUR_MS / 60));
+        assertTrue(store.isSyncDue(BillingClient.SkuType.INAPP, NOW + PurchaseHistoryStore.MIN_SYNC_INTERVAL_MS));
+        assertEquals(4, store.size());
+        assertEquals(BillingClient.SkuType.SUBS, store.getByToken("t4").getSkuType());
+        assertNull(store.getByToken("t5"));
+        assertEquals(Arrays.asList("t1", "t3"), tokens(store.getBySku("gas")));
+        // Ties keep the order they were written in
+        assertEquals(Arrays.asList("t2", "t4", "t3"), tokens(store.getBetween(NOW - 2 * HOUR_MS, NOW)));
+    }
+
+    @Test
+    public void sync_onlyWritesNewOrChangedRecords() throws JSONException {
+        PurchaseHistoryStore store = new PurchaseHistoryStore(mApplication);
+        store.applyHistory(BillingClient.SkuType.INAPP, Arrays.asList(
+                record("gas", "t1", NOW - 2 * HOUR_MS), record("gas", "t2", NOW - HOUR_MS)), NOW);
+
+        store = new PurchaseHistoryStore(mApplication);
+        // Loaded on another executor before the first read
+        SimulatedLooper background = new SimulatedLooper();
+        store.preload(background);
+        background.runFor(0);
+        // t1 is unchanged, t2 changed and t3 is new
+        assertEquals(2, store.applyHistory(BillingClient.SkuType.INAPP, Arrays.asList(
+                record("gas", "t1", NOW - 2 * HOUR_MS),
+                record("premium", "t2", NOW - HOUR_MS),
+                record("gas", "t3", NOW)), NOW));
+        assertEquals(3, new PurchaseHistoryStore(mApplication).size());
+        assertEquals("premium", new PurchaseHistoryStore(mApplication).getByToken("t2").getSku());
+    }
+
+    private static PurchaseHistoryRecord record(String sku, String token, long purchaseTime)
+            throws JSONException {
+        return new PurchaseHistoryRecord("{\"productId\":\"" + sku + "\",\"purchaseToken\":\"" + token
+                + "\",\"purchaseTime\":" + purchaseTime + "}", "signature-" + token);
+    }
+
+    private static List<String> tokens(List<PurchaseHistoryStore.Entry> entries) {
+        String[] tokens = new String[entries.size()];
+        for (int i = 0; i < tokens.length; i++) {
+            tokens[i] = entries.get(i).getPurchaseToken();
+        }
+        return Arrays.asList(tokens);
+    }
+}
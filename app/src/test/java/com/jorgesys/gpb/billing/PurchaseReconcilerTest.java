@@ -0,0 +1,266 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+import android.app.Application;
+
+import androidx.arch.core.executor.testing.InstantTaskExecutorRule;
+
+import com.android.billingclient.api.Purchase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the purchase reconciliation: the ledger diff on its own, then through BillingManager
+ * while purchases come, complete and go on the simulated Play side.
+ */
+public class PurchaseReconcilerTest {
+    private static final long SEED = 0x4ec0_b111L;
+    private static final int EVENTS = 400;
+
+    // LiveData is set from the simulated executors
+    @Rule
+    public final InstantTaskExecutorRule mInstantTaskExecutorRule = new InstantTaskExecutorRule();
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("purchase_grants", null);
+        mFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void reconcile_findsMissingRevokedAndUnacknowledged() {
+        PurchaseReconciler reconciler = new PurchaseReconciler(mFile);
+        Purchase gas = purchase("gas", "t1", true, true);
+        Purchase premium = purchase("premium", "t2", true, false);
+        Purchase pending = purchase("gas", "t3", false, false);
+
+        PurchaseReconciler.Report report = reconciler.reconcile(Arrays.asList(gas, premium, pending),
+                TokenSet.EMPTY);
+        assertEquals(Arrays.asList(gas, premium), report.getMissingGrants());
+        assertEquals(Arrays.asList(premium), report.getUnacknowledged());
+        assertTrue(report.getRevokedSkus().isEmpty());
+        assertEquals(1, report.getGrantDelta("gas"));
+        reconciler.commit(report);
+
+        // Read back from the file: nothing left to grant, premium is being acknowledged
+        reconciler = new PurchaseReconciler(mFile);
+        assertEquals(2, reconciler.getGrantCount());
+        report = reconciler.reconcile(Arrays.asList(gas, premium, pending),
+                new TokenSet.Builder(1).add("t2").build());
+        assertFalse(report.hasGrantChanges());
+        assertTrue(report.getUnacknowledged().isEmpty());
+
+        // Play no longer lists the gas purchase, refunded
+        report = reconciler.reconcile(Arrays.asList(premium), TokenSet.EMPTY);
+        assertEquals(Arrays.asList("gas"), report.getRevokedSkus());
+        assertEquals(-1, report.getGrantDelta("gas"));
+        reconciler.commit(report);
+        assertEquals(1, new PurchaseReconciler(mFile).getGrantCount());
+    }
+
+    @Test
+    public void reconcile_largeHistory_isSpreadOverBoundedPasses() {
+        PurchaseReconciler reconciler = new PurchaseReconciler(mFile);
+        List<Purchase> owned = new ArrayList<>();
+        for (int i = 0; i < 5 * PurchaseReconciler.MAX_FIXES_PER_PASS + 7; i++) {
+            owned.add(purchase("gas", "token-" + i, true, true));
+        }
+
+        int passes = 0;
+        int granted = 0;
+        PurchaseReconciler.Report report;
+        do {
+            report = reconciler.reconcile(owned, TokenSet.EMPTY);
+            assertTrue(report.getMissingGrants().size() <= PurchaseReconciler.MAX_FIXES_PER_PASS);
+            granted += report.getGrantDelta("gas");
+            reconciler.commit(report);
+            passes++;
+        } while (report.hasMore());
+        assertEquals(owned.size(), granted);
+        assertEquals(6, passes);
+
+        // Everything refunded at once
+        int revoked = 0;
+        do {
+            report = reconciler.reconcile(new ArrayList<Purchase>(), TokenSet.EMPTY);
+            assertTrue(report.getRevokedSkus().size() <= PurchaseReconciler.MAX_FIXES_PER_PASS);
+            revoked -= report.getGrantDelta("gas");
+            reconciler.commit(report);
+        } while (report.hasMore());
+        assertEquals(owned.size(), revoked);
+        assertEquals(0, reconciler.getGrantCount());
+    }
+
+    @Test
+    public void billingManager_grantsEachPurchaseOnce() throws IOException {
+        File filesDir = File.createTempFile("files", null);
+        filesDir.delete();
+        filesDir.mkdir();
+        SimulatedLooper looper = new SimulatedLooper();
+        Random random = new Random(SEED);
+        SimulatedBillingService service = new SimulatedBillingService(looper, random);
+        Application application = InMemorySharedPreferences.newApplication(filesDir);
+        final Map<String, Integer> grants = new HashMap<>();
+        final int[] revocations = new int[1];
+        PurchaseReconciler.GrantHandler handler = new PurchaseReconciler.GrantHandler() {
+            @Override
+            public void onReconciled(PurchaseReconciler.Report report) {
+                for (Purchase purchase : report.getMissingGrants()) {
+                    Integer count = grants.get(purchase.getPurchaseToken());
+                    grants.put(purchase.getPurchaseToken(), count == null ? 1 : count + 1);
+                }
+                revocations[0] += report.getRevokedSkus().size();
+            }
+        };
+
+        try {
+            BillingManager manager = startApp(application, looper, service, handler);
+            for (int i = 0; i < EVENTS; i++) {
+                switch (random.nextInt(4)) {
+                    case 0:
+                        service.purchaseOutsideApp(random.nextBoolean());
+                        break;
+                    case 1:
+                        service.settlePendingPayment(random.nextBoolean());
+                        break;
+                    case 2:
+                        service.consumeAcknowledged();
+                        break;
+                    default:
+                        service.disconnect();
+                        break;
+                }
+                looper.runFor(random.nextInt(5000));
+            }
+            // Whatever the events were, the restart has something owned to find
+            service.consumeAcknowledged();
+            service.purchaseOutsideApp(false);
+            looper.runFor(5000);
+            // The next launch queries everything again, with the grants recorded by this one
+            manager.destroy();
+            looper.runFor(1000);
+            startApp(application, looper, service, handler);
+            looper.runFor(60 * 1000L);
+        } finally {
+            new File(filesDir, PurchaseReconciler.FILE_NAME).delete();
+            new File(filesDir, EntitlementSnapshot.FILE_NAME).delete();
+            filesDir.delete();
+        }
+
+        int owned = 0;
+        for (SimulatedBillingService.SimPurchase purchase : service.getLedger()) {
+            if (!purchase.mConsumed && !purchase.mPending) {
+                owned++;
+                assertEquals("grants of " + purchase.mToken, Integer.valueOf(1), grants.get(purchase.mToken));
+            }
+        }
+        for (Map.Entry<String, Integer> grant : grants.entrySet()) {
+            assertEquals("grants of " + grant.getKey(), Integer.valueOf(1), grant.getValue());
+        }
+        System.out.printf("Reconciliation: %d granted, %d revoked, %d owned%n",
+                grants.size(), revocations[0], owned);
+        assertTrue(owned > 0 && revocations[0] > 0);
+        assertEquals(owned, grants.size() - revocations[0]);
+    }
+
+    @Test
+    public void destroyBeforeTheReportIsApplied_grantsOnTheNextLaunch() throws IOException {
+        File filesDir = File.createTempFile("files", null);
+        filesDir.delete();
+        filesDir.mkdir();
+        SimulatedLooper looper = new SimulatedLooper();
+        // Holds the reports until the test lets the callback executor run
+        SimulatedLooper callbackLooper = new SimulatedLooper();
+        SimulatedBillingService service = new SimulatedBillingService(looper, new Random(SEED));
+        service.purchaseOutsideApp("gas", false);
+        Application application = InMemorySharedPreferences.newApplication(filesDir);
+        final List<Purchase> granted = new ArrayList<>();
+        PurchaseReconciler.GrantHandler handler = new PurchaseReconciler.GrantHandler() {
+            @Override
+            public void onReconciled(PurchaseReconciler.Report report) {
+                granted.addAll(report.getMissingGrants());
+            }
+        };
+
+        try {
+            Activity activity = InMemorySharedPreferences.newActivity(application);
+            BillingManager manager = new BillingManager(activity,
+                    new BillingExecutors(looper, looper, callbackLooper), service.clientFactory());
+            manager.setGrantHandler(handler);
+            manager.onResume();
+            looper.runFor(5000);
+            assertTrue(callbackLooper.pendingCount() > 0);
+
+            // The activity is gone before the report reaches it
+            manager.destroy();
+            looper.runFor(1000);
+            callbackLooper.runFor(0);
+            looper.runFor(1000);
+            assertTrue(granted.isEmpty());
+            assertEquals(0, new PurchaseReconciler(new File(filesDir, PurchaseReconciler.FILE_NAME)).getGrantCount());
+
+            startApp(application, looper, service, handler);
+            looper.runFor(60 * 1000L);
+            assertEquals(1, granted.size());
+            assertEquals("gas", granted.get(0).getSku());
+        } finally {
+            new File(filesDir, PurchaseReconciler.FILE_NAME).delete();
+            new File(filesDir, EntitlementSnapshot.FILE_NAME).delete();
+            filesDir.delete();
+        }
+    }
+
+    private static BillingManager startApp(Application application, SimulatedLooper looper,
+                                           SimulatedBillingService service,
+                                           PurchaseReconciler.GrantHandler handler) {
+        Activity activity = InMemorySharedPreferences.newActivity(application);
+        BillingManager manager = new BillingManager(activity,
+                new BillingExecutors(looper, looper, looper), service.clientFactory());
+        manager.setGrantHandler(handler);
+        manager.attachActivity(activity);
+        manager.onResume();
+        return manager;
+    }
+
+    private static Purchase purchase(String sku, String token, boolean purchased, boolean acknowledged) {
+        return SimulatedBillingService.purchase(sku, token, 1500000000000L, !purchased, acknowledged);
+    }
+}
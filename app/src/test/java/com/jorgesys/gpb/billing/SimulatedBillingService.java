@@ -0,0 +1,552 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import android.app.Activity;
+import android.content.Context;
+
+import com.android.billingclient.api.AcknowledgePurchaseParams;
+import com.android.billingclient.api.AcknowledgePurchaseResponseListener;
+import com.android.billingclient.api.BillingClient;
+import com.android.billingclient.api.BillingClientStateListener;
+import com.android.billingclient.api.BillingFlowParams;
+import com.android.billingclient.api.BillingResult;
+import com.android.billingclient.api.ConsumeParams;
+import com.android.billingclient.api.ConsumeResponseListener;
+import com.android.billingclient.api.PriceChangeConfirmationListener;
+import com.android.billingclient.api.PriceChangeFlowParams;
+import com.android.billingclient.api.Purchase;
+import com.android.billingclient.api.PurchaseHistoryRecord;
+import com.android.billingclient.api.PurchaseHistoryResponseListener;
+import com.android.billingclient.api.PurchasesUpdatedListener;
+import com.android.billingclient.api.SkuDetails;
+import com.android.billingclient.api.SkuDetailsParams;
+import com.android.billingclient.api.SkuDetailsResponseListener;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Play Billing simulated on a {@link SimulatedLooper}: a ledger of in-app purchases and
+ * subscriptions on the "server" side, clients answering with random latency, and injected faults
+ * (failed setups, dropped connections, failed SKU queries and acknowledgements). Everything is driven by one seeded
+ * {@link Random}, so a run is reproducible from its seed.
+ */
+final class SimulatedBillingService {
+    // Owned at most once at a time, like the consumables of the app
+    static final String[] INAPP_SKUS = {"gas", "premium", "sku_0", "sku_1", "sku_2", "sku_3",
+            "sku_4", "sku_5", "sku_6", "sku_7", "sku_8", "sku_9"};
+    // The subscription of the app, owned until it expires
+    static final String[] SUBS_SKUS = {"subcription_gold"};
+
+    /**
+     * Probabilities of the injected faults and bounds of the response latency
+     */
+    static final class Faults {
+        double setupFailure;
+        double skuQueryFailure;
+        double acknowledgeFailure;
+        long minLatencyMs = 1;
+        long maxLatencyMs = 1;
+
+        static Faults none() {
+            return new Faults();
+        }
+    }
+
+    /**
+     * A purchase as the server knows it
+     */
+    static final class SimPurchase {
+        final String mSku;
+        final String mToken;
+        final long mPurchaseTime;
+        boolean mPending;
+        boolean mConsumed;
+        int mAcknowledgements;
+        // Virtual time the payment completed and the first acknowledgement landed, -1 until then
+        long mPurchasedAt = -1;
+        long mAcknowledgedAt = -1;
+
+        SimPurchase(String sku, String token, long purchaseTime) {
+            mSku = sku;
+            mToken = token;
+            mPurchaseTime = purchaseTime;
+        }
+
+        Purchase toPurchase() {
+            return purchase(mSku, mToken, mPurchaseTime, mPending, mAcknowledgements > 0);
+        }
+    }
+
+    private final SimulatedLooper mLooper;
+    private final Random mRandom;
+    private Faults mFaults = Faults.none();
+    // Every purchase ever made by token, owned or not
+    private final LinkedHashMap<String, SimPurchase> mLedger = new LinkedHashMap<>();
+    // The ones not consumed yet
+    private final LinkedHashMap<String, SimPurchase> mOwned = new LinkedHashMap<>();
+    private int mNextToken;
+    private Client mClient;
+
+    private int mConnections;
+    private int mDisconnects;
+    private int mFlowsLaunched;
+    private int mAcknowledgeCalls;
+    private int mFailedAcknowledgements;
+    private int mStaleAcknowledgements;
+
+    SimulatedBillingService(SimulatedLooper looper, Random random) {
+        mLooper = looper;
+        mRandom = random;
+    }
+
+    void setFaults(Faults faults) {
+        mFaults = faults;
+    }
+
+    BillingManager.BillingClientFactory clientFactory() {
+        return new BillingManager.BillingClientFactory() {
+            @Override
+            public BillingClient create(Context context, PurchasesUpdatedListener listener) {
+                mClient = new Client(listener);
+                return mClient;
+            }
+        };
+    }
+
+    /**
+     * A purchase as Play reports it
+     */
+    static Purchase purchase(String sku, String token, long purchaseTime, boolean pending,
+                             boolean acknowledged) {
+        String json = "{\"orderId\":\"GPA." + token + "\",\"packageName\":\"com.jorgesys.gpb\","
+                + "\"productId\":\"" + sku + "\",\"purchaseTime\":" + purchaseTime
+                + ",\"purchaseState\":" + (pending ? 4 : 0) + ",\"purchaseToken\":\"" + token
+                + "\",\"acknowledged\":" + acknowledged + "}";
+        try {
+            return new Purchase(json, "signature");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static SkuDetails skuDetails(String sku) {
+        String type = isSubscription(sku) ? "subs\",\"subscriptionPeriod\":\"P1M" : "inapp";
+        try {
+            return new SkuDetails("{\"productId\":\"" + sku + "\",\"type\":\"" + type + "\",\"price\":\"$0.99\","
+                    + "\"price_amount_micros\":990000,\"price_currency_code\":\"USD\","
+                    + "\"title\":\"" + sku + "\",\"description\":\"Simulated " + sku + "\"}");
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Events happening on the Play side
+
+    /**
+     * A purchase made outside of the app, e.g. a promo code, reported through the listener
+     */
+    void purchaseOutsideApp(boolean pending) {
+        purchaseOutsideApp(randomSku(), pending);
+    }
+
+    void purchaseOutsideApp(String sku, boolean pending) {
+        SimPurchase purchase = newPurchase(sku, pending);
+        if (purchase != null) {
+            notifyPurchase(purchase);
+        }
+    }
+
+    /**
+     * The delayed payment of a pending purchase completes or, sometimes, is cancelled. Play
+     * does not always tell the app, which then has to poll.
+     */
+    void settlePendingPayment(boolean notify) {
+        for (SimPurchase purchase : mOwned.values()) {
+            if (purchase.mPending) {
+                if (mRandom.nextInt(10) == 0) {
+                    consume(purchase);
+                    return;
+                }
+                purchase.mPending = false;
+                purchase.mPurchasedAt = mLooper.uptimeMillis();
+                if (notify) {
+                    notifyPurchase(purchase);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * The app consumes an acknowledged purchase, so its SKU can be bought again
+     */
+    void consumeAcknowledged() {
+        for (SimPurchase purchase : mOwned.values()) {
+            if (purchase.mAcknowledgements > 0 && !isSubscription(purchase.mSku)) {
+                consume(purchase);
+                return;
+            }
+        }
+    }
+
+    /**
+     * The user subscribes from the Play Store, reported through the listener
+     */
+    void subscribe() {
+        purchaseOutsideApp(SUBS_SKUS[mRandom.nextInt(SUBS_SKUS.length)], false);
+    }
+
+    /**
+     * A subscription lapses at the end of its period. Play does not tell the app, which has to
+     * query the subscriptions again.
+     */
+    void expireSubscription() {
+        for (SimPurchase purchase : mOwned.values()) {
+            if (isSubscription(purchase.mSku) && !purchase.mPending) {
+                consume(purchase);
+                return;
+            }
+        }
+    }
+
+    private void consume(SimPurchase purchase) {
+        purchase.mConsumed = true;
+        mOwned.remove(purchase.mToken);
+    }
+
+    /**
+     * Drops the connection of the current client, calls in flight fail with
+     * SERVICE_DISCONNECTED
+     */
+    void disconnect() {
+        if (mClient != null && mClient.mReady) {
+            mDisconnects++;
+            mClient.mReady = false;
+            mClient.mGeneration++;
+            mClient.mStateListener.onBillingServiceDisconnected();
+        }
+    }
+
+    /**
+     * Completes every pending payment without telling the app
+     */
+    void settleAllPendingPayments() {
+        for (SimPurchase purchase : mOwned.values()) {
+            if (purchase.mPending) {
+                purchase.mPending = false;
+                purchase.mPurchasedAt = mLooper.uptimeMillis();
+            }
+        }
+    }
+
+    // Ledger
+
+    List<SimPurchase> getLedger() {
+        return new ArrayList<>(mLedger.values());
+    }
+
+    List<String> getOwnedTokens() {
+        List<String> tokens = new ArrayList<>(mOwned.keySet());
+        Collections.sort(tokens);
+        return tokens;
+    }
+
+    int getConnections() {
+        return mConnections;
+    }
+
+    int getDisconnects() {
+        return mDisconnects;
+    }
+
+    int getFlowsLaunched() {
+        return mFlowsLaunched;
+    }
+
+    int getAcknowledgeCalls() {
+        return mAcknowledgeCalls;
+    }
+
+    int getFailedAcknowledgements() {
+        return mFailedAcknowledgements;
+    }
+
+    /**
+     * @return acknowledgements of purchases consumed meanwhile, answered ITEM_NOT_OWNED
+     */
+    int getStaleAcknowledgements() {
+        return mStaleAcknowledgements;
+    }
+
+    private SimPurchase newPurchase(String sku, boolean pending) {
+        for (SimPurchase purchase : mOwned.values()) {
+            if (purchase.mSku.equals(sku)) {
+                return null;
+            }
+        }
+        SimPurchase purchase = new SimPurchase(sku, "token-" + (mNextToken++), mLooper.uptimeMillis());
+        purchase.mPending = pending;
+        if (!pending) {
+            purchase.mPurchasedAt = mLooper.uptimeMillis();
+        }
+        mLedger.put(purchase.mToken, purchase);
+        mOwned.put(purchase.mToken, purchase);
+        return purchase;
+    }
+
+    private void notifyPurchase(SimPurchase purchase) {
+        if (mClient != null && mClient.mReady) {
+            mClient.mListener.onPurchasesUpdated(result(BillingClient.BillingResponseCode.OK),
+                    Collections.singletonList(purchase.toPurchase()));
+        }
+    }
+
+    static boolean isSubscription(String sku) {
+        for (String subscription : SUBS_SKUS) {
+            if (subscription.equals(sku)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String randomSku() {
+        return INAPP_SKUS[mRandom.nextInt(INAPP_SKUS.length)];
+    }
+
+    private long latency() {
+        return mFaults.minLatencyMs + (long) (mRandom.nextDouble() * (mFaults.maxLatencyMs - mFaults.minLatencyMs));
+    }
+
+    private static BillingResult result(int responseCode) {
+        return BillingResult.newBuilder().setResponseCode(responseCode).build();
+    }
+
+    /**
+     * An answer from the service, delivered after a random latency unless the connection it was
+     * sent on dropped meanwhile
+     */
+    private abstract class Response implements Runnable {
+        private final Client mSentOn;
+        private final int mGeneration;
+
+        Response(Client client) {
+            mSentOn = client;
+            mGeneration = client.mGeneration;
+            mLooper.executeDelayed(this, latency());
+        }
+
+        abstract void deliver();
+
+        abstract void fail(BillingResult billingResult);
+
+        @Override
+        public final void run() {
+            if (mSentOn.mGeneration != mGeneration || !mSentOn.mReady) {
+                fail(result(BillingClient.BillingResponseCode.SERVICE_DISCONNECTED));
+            } else {
+                deliver();
+            }
+        }
+    }
+
+    /**
+     * The BillingClient handed to BillingManager
+     */
+    private final class Client extends BillingClient {
+        final PurchasesUpdatedListener mListener;
+        BillingClientStateListener mStateListener;
+        boolean mReady;
+        boolean mEnded;
+        int mGeneration;
+
+        Client(PurchasesUpdatedListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        public boolean isReady() {
+            return mReady;
+        }
+
+        @Override
+        public BillingResult isFeatureSupported(String feature) {
+            return result(BillingResponseCode.OK);
+        }
+
+        @Override
+        public void startConnection(final BillingClientStateListener listener) {
+            mStateListener = listener;
+            mLooper.executeDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mEnded) {
+                        return;
+                    }
+                    if (mRandom.nextDouble() < mFaults.setupFailure) {
+                        listener.onBillingSetupFinished(result(BillingResponseCode.SERVICE_UNAVAILABLE));
+                        return;
+                    }
+                    mConnections++;
+                    mReady = true;
+                    listener.onBillingSetupFinished(result(BillingResponseCode.OK));
+                }
+            }, latency());
+        }
+
+        @Override
+        public void endConnection() {
+            mReady = false;
+            mEnded = true;
+            mGeneration++;
+        }
+
+        @Override
+        public BillingResult launchBillingFlow(Activity activity, BillingFlowParams params) {
+            if (!mReady) {
+                return result(BillingResponseCode.SERVICE_DISCONNECTED);
+            }
+            mFlowsLaunched++;
+            final String sku = params.getSku();
+            new Response(this) {
+                @Override
+                void deliver() {
+                    if (mRandom.nextInt(5) == 0) {
+                        mListener.onPurchasesUpdated(result(BillingResponseCode.USER_CANCELED), null);
+                        return;
+                    }
+                    SimPurchase purchase = newPurchase(sku, mRandom.nextInt(5) == 0);
+                    if (purchase == null) {
+                        mListener.onPurchasesUpdated(result(BillingResponseCode.ITEM_ALREADY_OWNED), null);
+                    } else {
+                        mListener.onPurchasesUpdated(result(BillingResponseCode.OK),
+                                Collections.singletonList(purchase.toPurchase()));
+                    }
+                }
+
+                @Override
+                void fail(BillingResult billingResult) {
+                    mListener.onPurchasesUpdated(billingResult, null);
+                }
+            };
+            return result(BillingResponseCode.OK);
+        }
+
+        @Override
+        public void launchPriceChangeConfirmationFlow(Activity activity, PriceChangeFlowParams params,
+                                                      PriceChangeConfirmationListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Purchase.PurchasesResult queryPurchases(String skuType) {
+            if (!mReady) {
+                return new Purchase.PurchasesResult(result(BillingResponseCode.SERVICE_DISCONNECTED), null);
+            }
+            List<Purchase> purchases = new ArrayList<>();
+            for (SimPurchase purchase : mOwned.values()) {
+                if (isSubscription(purchase.mSku) == SkuType.SUBS.equals(skuType)) {
+                    purchases.add(purchase.toPurchase());
+                }
+            }
+            return new Purchase.PurchasesResult(result(BillingResponseCode.OK), purchases);
+        }
+
+        @Override
+        public void querySkuDetailsAsync(final SkuDetailsParams params, final SkuDetailsResponseListener listener) {
+            new Response(this) {
+                @Override
+                void deliver() {
+                    if (mRandom.nextDouble() < mFaults.skuQueryFailure) {
+                        listener.onSkuDetailsResponse(result(BillingResponseCode.ERROR), null);
+                        return;
+                    }
+                    List<SkuDetails> details = new ArrayList<>();
+                    for (String sku : params.getSkusList()) {
+                        if (isSubscription(sku) == SkuType.SUBS.equals(params.getSkuType())) {
+                            details.add(skuDetails(sku));
+                        }
+                    }
+                    listener.onSkuDetailsResponse(result(BillingResponseCode.OK), details);
+                }
+
+                @Override
+                void fail(BillingResult billingResult) {
+                    listener.onSkuDetailsResponse(billingResult, null);
+                }
+            };
+        }
+
+        @Override
+        public void consumeAsync(ConsumeParams params, ConsumeResponseListener listener) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void queryPurchaseHistoryAsync(String skuType, final PurchaseHistoryResponseListener listener) {
+            new Response(this) {
+                @Override
+                void deliver() {
+                    listener.onPurchaseHistoryResponse(result(BillingResponseCode.OK),
+                            Collections.<PurchaseHistoryRecord>emptyList());
+                }
+
+                @Override
+                void fail(BillingResult billingResult) {
+                    listener.onPurchaseHistoryResponse(billingResult, null);
+                }
+            };
+        }
+
+        @Override
+        public void acknowledgePurchase(final AcknowledgePurchaseParams params,
+                                        final AcknowledgePurchaseResponseListener listener) {
+            new Response(this) {
+                @Override
+                void deliver() {
+                    mAcknowledgeCalls++;
+                    if (mRandom.nextDouble() < mFaults.acknowledgeFailure) {
+                        mFailedAcknowledgements++;
+                        listener.onAcknowledgePurchaseResponse(result(BillingResponseCode.ERROR));
+                        return;
+                    }
+                    SimPurchase purchase = mLedger.get(params.getPurchaseToken());
+                    if (purchase == null || purchase.mConsumed) {
+                        mStaleAcknowledgements++;
+                        listener.onAcknowledgePurchaseResponse(result(BillingResponseCode.ITEM_NOT_OWNED));
+                        return;
+                    }
+                    if (purchase.mAcknowledgements++ == 0) {
+                        purchase.mAcknowledgedAt = mLooper.uptimeMillis();
+                    }
+                    listener.onAcknowledgePurchaseResponse(result(BillingResponseCode.OK));
+                }
+
+                @Override
+                void fail(BillingResult billingResult) {
+                    listener.onAcknowledgePurchaseResponse(billingResult);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Single threaded executor on a virtual clock, used as state, background and callback executor
+ * so BillingManager runs deterministically: commands run in time order, and in submission order
+ * at the same time, only when the test advances the clock.
+ */
+final class SimulatedLooper implements BillingExecutors.SerialExecutor {
+
+    private static final class Task {
+        long mTime;
+        long mSequence;
+        Runnable mCommand;
+    }
+
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>(64, new Comparator<Task>() {
+        @Override
+        public int compare(Task a, Task b) {
+            if (a.mTime != b.mTime) {
+                return a.mTime < b.mTime ? -1 : 1;
+            }
+            return a.mSequence < b.mSequence ? -1 : (a.mSequence == b.mSequence ? 0 : 1);
+        }
+    });
+    // Tasks that ran, reused so that the looper does not show up in allocation counts
+    private final ArrayDeque<Task> mFreeTasks = new ArrayDeque<>();
+    private long mNow;
+    private long mSequence;
+    private boolean mRunning;
+    private long mExecuted;
+
+    @Override
+    public void execute(Runnable command) {
+        executeDelayed(command, 0);
+    }
+
+    @Override
+    public void executeDelayed(Runnable command, long delayMillis) {
+        Task task = mFreeTasks.pollFirst();
+        if (task == null) {
+            task = new Task();
+        }
+        task.mTime = mNow + Math.max(0, delayMillis);
+        task.mSequence = mSequence++;
+        task.mCommand = command;
+        mQueue.add(task);
+    }
+
+    @Override
+    public void cancel(Runnable command) {
+        Iterator<Task> iterator = mQueue.iterator();
+        while (iterator.hasNext()) {
+            Task task = iterator.next();
+            if (task.mCommand == command) {
+                iterator.remove();
+                recycle(task);
+            }
+        }
+    }
+
+    @Override
+    public boolean isCurrentThread() {
+        return mRunning;
+    }
+
+    @Override
+    public long uptimeMillis() {
+        return mNow;
+    }
+
+    /**
+     * Runs every command due up to the given time, including the ones they schedule, and leaves
+     * the clock there
+     */
+    void runUntil(long timeMillis) {
+        mRunning = true;
+        try {
+            while (!mQueue.isEmpty() && mQueue.peek().mTime <= timeMillis) {
+                Task task = mQueue.poll();
+                mNow = Math.max(mNow, task.mTime);
+                mExecuted++;
+                Runnable command = task.mCommand;
+                recycle(task);
+                command.run();
+            }
+        } finally {
+            mRunning = false;
+        }
+        mNow = Math.max(mNow, timeMillis);
+    }
+
+    private void recycle(Task task) {
+        task.mCommand = null;
+        mFreeTasks.addLast(task);
+    }
+
+    void runFor(long durationMillis) {
+        runUntil(mNow + durationMillis);
+    }
+
+    int pendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * @return number of commands run so far
+     */
+    long executedCount() {
+        return mExecuted;
+    }
+}
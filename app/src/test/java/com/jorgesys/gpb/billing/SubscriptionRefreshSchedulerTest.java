@@ -0,0 +1,76 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.billing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test of the subscription refresh schedule across foreground and background
+ */
+public class SubscriptionRefreshSchedulerTest {
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final long PURCHASE_TIME = 1500000000000L;
+
+    private SimulatedLooper mLooper;
+    private SubscriptionRefreshScheduler mScheduler;
+    private int mRefreshes;
+
+    @Before
+    public void setUp() {
+        mLooper = new SimulatedLooper();
+        mScheduler = new SubscriptionRefreshScheduler(mLooper,
+                new SubscriptionRefreshScheduler.RefreshCallback() {
+                    @Override
+                    public void onRefreshDue() {
+                        mRefreshes++;
+                    }
+                });
+        mScheduler.setSubscriptionPeriod("premium", "P1W");
+        mScheduler.onForeground(PURCHASE_TIME);
+        mScheduler.update(Arrays.asList(SimulatedBillingService.purchase("premium", "sub-token",
+                PURCHASE_TIME, false, true)), PURCHASE_TIME + DAY_MS);
+    }
+
+    @Test
+    public void boundaryPassedInBackground_refreshesOnForeground() {
+        mScheduler.onBackground();
+        // The renewal boundary is a week after the purchase, the device slept through it
+        long now = PURCHASE_TIME + 8 * DAY_MS;
+        mLooper.runFor(DAY_MS);
+        assertEquals(0, mRefreshes);
+
+        mScheduler.onForeground(now);
+        mLooper.runFor(0);
+        assertEquals(1, mRefreshes);
+    }
+
+    @Test
+    public void foregroundBeforeBoundary_keepsTheSchedule() {
+        mScheduler.onBackground();
+        mScheduler.onForeground(PURCHASE_TIME + 2 * DAY_MS);
+        mLooper.runFor(4 * DAY_MS);
+        assertEquals(0, mRefreshes);
+
+        // Due a week after the purchase
+        mLooper.runFor(DAY_MS + 1);
+        assertEquals(1, mRefreshes);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2017 Google Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.jorgesys.gpb.skulist;
+
+import com.jorgesys.gpb.skulist.row.SkuRowData;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test of the price model: formatting from micros and ordering by price
+ */
+public class CatalogPriceTest {
+    private static final long SEED = 0x9e1c_e5L;
+    private static final int CATALOG_SIZE = 5000;
+
+    @Test
+    public void format_usesTheCurrencyDigitsAndCachesFormats() {
+        PriceFormatter formatter = new PriceFormatter();
+        assertEquals("$0.99", formatter.format(990000L, "USD", Locale.US));
+        assertEquals("$1,234.50", formatter.format(1234500000L, "USD", Locale.US));
+        // No fraction digits in yen, whatever the locale
+        String yen = formatter.format(120000000L, "JPY", Locale.JAPAN);
+        assertTrue(yen, yen.endsWith("120") && !yen.contains("."));
+        yen = formatter.format(120000000L, "JPY", Locale.US);
+        assertTrue(yen, yen.endsWith("120") && !yen.contains("."));
+
+        assertSame(formatter.getFormat("USD", Locale.US), formatter.getFormat("USD", Locale.US));
+        assertTrue(formatter.getFormat("USD", Locale.US) != formatter.getFormat("EUR", Locale.US));
+        assertTrue(formatter.getFormat("EUR", Locale.US) != formatter.getFormat("EUR", Locale.GERMANY));
+        assertNull(formatter.format(990000L, "XYZ1", Locale.US));
+        assertNull(formatter.format(990000L, null, Locale.US));
+    }
+
+    @Test
+    public void priceOrders_areStableAndSorted() {
+        Random random = new Random(SEED);
+        List<SkuRowData> rows = new ArrayList<>();
+        for (int i = 0; i < CATALOG_SIZE; i++) {
+            // Few distinct prices, so stability matters
+            long micros = random.nextInt(50) * 250000L;
+            rows.add(new SkuRowData("sku" + i, "Item " + i, null, micros, "USD", null, "inapp", null));
+        }
+        CatalogIndex index = new CatalogIndex(rows);
+
+        List<SkuRowData> ascending = index.query("", CatalogIndex.SORT_PRICE_ASC);
+        List<SkuRowData> descending = index.query("", CatalogIndex.SORT_PRICE_DESC);
+        assertEquals(CATALOG_SIZE, ascending.size());
+        assertEquals(CATALOG_SIZE, descending.size());
+        for (int i = 1; i < CATALOG_SIZE; i++) {
+            assertInOrder(ascending.get(i - 1), ascending.get(i), false);
+            assertInOrder(descending.get(i - 1), descending.get(i), true);
+        }
+    }
+
+    private static void assertInOrder(SkuRowData previous, SkuRowData row, boolean descending) {
+        long a = previous.getPriceAmountMicros();
+        long b = row.getPriceAmountMicros();
+        assertTrue(descending ? a >= b : a <= b);
+        if (a == b) {
+            // Equal prices keep the catalog order
+            assertTrue(number(previous) < number(row));
+        }
+    }
+
+    private static int number(SkuRowData row) {
+        return Integer.parseInt(row.getSku().substring(3));
+    }
+}